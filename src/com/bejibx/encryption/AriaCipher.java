@@ -23,6 +23,11 @@ import java.util.Arrays;
  */
 public class AriaCipher
 {
+    /**
+     * ARIA block size in bytes. Block size doesn't depend on the master key size.
+     */
+    public static final int BLOCK_SIZE = 16;
+
 /*
  *  Independent Submission                                                                                      J. Lee
  *  Request for Comments: 5794                                                                                  J. Lee
@@ -45,14 +50,16 @@ public class AriaCipher
  *  --------------------------------------------------------------------------------------------------------------------
  */
     /**
-     * Encryption round keys.
+     * Encryption round keys packed into big-endian 32-bit words, four words per round key. Expanded once per engine
+     * so the block path works on ints instead of allocating a byte array per layer. This is the only copy of the round
+     * keys an instance keeps.
      */
-    private byte[][] mEK;
+    private int[] mEKWords;
 
     /**
-     * Decryption round keys.
+     * Decryption round keys packed the same way as {@link #mEKWords}.
      */
-    private byte[][] mDK;
+    private int[] mDKWords;
 
     /**
      * Number of rounds. The number of rounds depends on the size of the master key.
@@ -291,53 +298,38 @@ public class AriaCipher
     //@formatter:on
 
     /**
-     * Type 1 substitution layer
+     * Word lookup tables for the block path. Each entry is the S-box output replicated into the byte lanes of a
+     * 32-bit word that the diffusion layer XORs it into, so a single lookup covers both the substitution and the
+     * in-word part of diffusion layer A.
+     *
+     * Tables are not stored in the class file: they are expanded from the S-boxes above by a holder class, so loading
+     * AriaCipher costs nothing and the 4 KiB of tables are built on the first block operation only. Holder state is
+     * immutable and depends on nothing but the S-boxes, which makes it safe to initialize at native-image build time
+     * (see META-INF/native-image) or to archive with AppCDS.
      */
-    private byte[] SL1(byte[] array)
+    private static final class Tables
     {
-        byte[] result = new byte[16];
-        result[0] = SB1[unsigned(array[0])];
-        result[1] = SB2[unsigned(array[1])];
-        result[2] = SB3[unsigned(array[2])];
-        result[3] = SB4[unsigned(array[3])];
-        result[4] = SB1[unsigned(array[4])];
-        result[5] = SB2[unsigned(array[5])];
-        result[6] = SB3[unsigned(array[6])];
-        result[7] = SB4[unsigned(array[7])];
-        result[8] = SB1[unsigned(array[8])];
-        result[9] = SB2[unsigned(array[9])];
-        result[10] = SB3[unsigned(array[10])];
-        result[11] = SB4[unsigned(array[11])];
-        result[12] = SB1[unsigned(array[12])];
-        result[13] = SB2[unsigned(array[13])];
-        result[14] = SB3[unsigned(array[14])];
-        result[15] = SB4[unsigned(array[15])];
-        return result;
+        static final int[] S1 = expand(SB1, 0x00010101);
+        static final int[] S2 = expand(SB2, 0x01000101);
+        static final int[] X1 = expand(SB3, 0x01010001);
+        static final int[] X2 = expand(SB4, 0x01010100);
+
+        private static int[] expand(byte[] sBox, int lanes)
+        {
+            int[] table = new int[256];
+            for (int i = 0; i < 256; i++)
+                table[i] = unsigned(sBox[i]) * lanes;
+            return table;
+        }
     }
 
     /**
-     * Type 2 substitution layer
+     * Type 1 substitution layer applied to a single big-endian word.
      */
-    private byte[] SL2(byte[] array)
+    private static int SL1Word(int x)
     {
-        byte[] result = new byte[16];
-        result[0] = SB3[unsigned(array[0])];
-        result[1] = SB4[unsigned(array[1])];
-        result[2] = SB1[unsigned(array[2])];
-        result[3] = SB2[unsigned(array[3])];
-        result[4] = SB3[unsigned(array[4])];
-        result[5] = SB4[unsigned(array[5])];
-        result[6] = SB1[unsigned(array[6])];
-        result[7] = SB2[unsigned(array[7])];
-        result[8] = SB3[unsigned(array[8])];
-        result[9] = SB4[unsigned(array[9])];
-        result[10] = SB1[unsigned(array[10])];
-        result[11] = SB2[unsigned(array[11])];
-        result[12] = SB3[unsigned(array[12])];
-        result[13] = SB4[unsigned(array[13])];
-        result[14] = SB1[unsigned(array[14])];
-        result[15] = SB2[unsigned(array[15])];
-        return result;
+        return (unsigned(SB1[x >>> 24]) << 24) | (unsigned(SB2[(x >>> 16) & 0xff]) << 16) |
+                (unsigned(SB3[(x >>> 8) & 0xff]) << 8) | unsigned(SB4[x & 0xff]);
     }
 
    /*
@@ -360,19 +352,23 @@ public class AriaCipher
     * ------------------------------------------------------------------------------------------------------------------
     */
     /**
-     * Odd round function
+     * Odd round function, used by the key schedule only. D is four big-endian words and is replaced by the result.
      */
-    private byte[] FO(byte[] D, byte[] RK)
+    private static void FO(int[] D, byte[] RK)
     {
-        return A(SL1(XOR(D, RK)));
+        for (int i = 0; i < 4; i++)
+            D[i] = SL1Word(D[i] ^ bytesToInt(RK, i * 4));
+        A(D);
     }
 
     /**
-     * Even round function
+     * Even round function, used by the key schedule only. D is four big-endian words and is replaced by the result.
      */
-    private byte[] FE(byte[] D, byte[] RK)
+    private static void FE(int[] D, byte[] RK)
     {
-        return A(SL2(XOR(D, RK)));
+        for (int i = 0; i < 4; i++)
+            D[i] = SL2Word(D[i] ^ bytesToInt(RK, i * 4));
+        A(D);
     }
 
     /*
@@ -403,34 +399,30 @@ public class AriaCipher
      *    x, x = A(A(x)) holds.
      * -----------------------------------------------------------------------------------------------------------------
      */
-    private byte[] A(byte[] b)
+    /**
+     * Diffusion layer on four big-endian words, in place. Same decomposition as the odd rounds of
+     * {@link #cryptBlock}: in-word mixing (done there by the table lanes), then word and byte shuffles.
+     */
+    private static void A(int[] b)
     {
-        int length = b.length;
-        if (length != 16)
-        {
-            throw new IllegalArgumentException("Illegal input size. Diffusion layer should take 16-byte string as parameter.");
-        }
-        else
-        {
-            byte[] result = new byte[16];
-            result[0] = (byte) (b[3] ^ b[4] ^ b[6] ^ b[8] ^ b[9] ^ b[13] ^ b[14]);
-            result[1] = (byte) (b[2] ^ b[5] ^ b[7] ^ b[8] ^ b[9] ^ b[12] ^ b[15]);
-            result[2] = (byte) (b[1] ^ b[4] ^ b[6] ^ b[10] ^ b[11] ^ b[12] ^ b[15]);
-            result[3] = (byte) (b[0] ^ b[5] ^ b[7] ^ b[10] ^ b[11] ^ b[13] ^ b[14]);
-            result[4] = (byte) (b[0] ^ b[2] ^ b[5] ^ b[8] ^ b[11] ^ b[14] ^ b[15]);
-            result[5] = (byte) (b[1] ^ b[3] ^ b[4] ^ b[9] ^ b[10] ^ b[14] ^ b[15]);
-            result[6] = (byte) (b[0] ^ b[2] ^ b[7] ^ b[9] ^ b[10] ^ b[12] ^ b[13]);
-            result[7] = (byte) (b[1] ^ b[3] ^ b[6] ^ b[8] ^ b[11] ^ b[12] ^ b[13]);
-            result[8] = (byte) (b[0] ^ b[1] ^ b[4] ^ b[7] ^ b[10] ^ b[13] ^ b[15]);
-            result[9] = (byte) (b[0] ^ b[1] ^ b[5] ^ b[6] ^ b[11] ^ b[12] ^ b[14]);
-            result[10] = (byte) (b[2] ^ b[3] ^ b[5] ^ b[6] ^ b[8] ^ b[13] ^ b[15]);
-            result[11] = (byte) (b[2] ^ b[3] ^ b[4] ^ b[7] ^ b[9] ^ b[12] ^ b[14]);
-            result[12] = (byte) (b[1] ^ b[2] ^ b[6] ^ b[7] ^ b[9] ^ b[11] ^ b[12]);
-            result[13] = (byte) (b[0] ^ b[3] ^ b[6] ^ b[7] ^ b[8] ^ b[10] ^ b[13]);
-            result[14] = (byte) (b[0] ^ b[3] ^ b[4] ^ b[5] ^ b[9] ^ b[11] ^ b[14]);
-            result[15] = (byte) (b[1] ^ b[2] ^ b[4] ^ b[5] ^ b[8] ^ b[10] ^ b[15]);
-            return result;
-        }
+        int x0 = b[0];
+        int x1 = b[1];
+        int x2 = b[2];
+        int x3 = b[3];
+        //Every output byte of a word is XOR of the other three bytes
+        x0 = Integer.rotateLeft(x0, 8) ^ Integer.rotateLeft(x0, 16) ^ Integer.rotateLeft(x0, 24);
+        x1 = Integer.rotateLeft(x1, 8) ^ Integer.rotateLeft(x1, 16) ^ Integer.rotateLeft(x1, 24);
+        x2 = Integer.rotateLeft(x2, 8) ^ Integer.rotateLeft(x2, 16) ^ Integer.rotateLeft(x2, 24);
+        x3 = Integer.rotateLeft(x3, 8) ^ Integer.rotateLeft(x3, 16) ^ Integer.rotateLeft(x3, 24);
+        x1 ^= x2; x2 ^= x3; x0 ^= x1; x3 ^= x1; x2 ^= x0; x1 ^= x2;
+        x1 = ((x1 << 8) & 0xff00ff00) ^ ((x1 >>> 8) & 0x00ff00ff);
+        x2 = Integer.rotateRight(x2, 16);
+        x3 = Integer.reverseBytes(x3);
+        x1 ^= x2; x2 ^= x3; x0 ^= x1; x3 ^= x1; x2 ^= x0; x1 ^= x2;
+        b[0] = x0;
+        b[1] = x1;
+        b[2] = x2;
+        b[3] = x3;
     }
 
    /*
@@ -519,9 +511,9 @@ public class AriaCipher
     *    2.4.3.
     * ------------------------------------------------------------------------------------------------------------------
     */
-    private void scheduleKey(byte[] key)
+    private void scheduleKey(byte[] key, int offset, int length)
     {
-        mKeyLength = key.length;
+        mKeyLength = length;
         final byte[] CK1;
         final byte[] CK2;
         final byte[] CK3;
@@ -556,41 +548,93 @@ public class AriaCipher
         }
 
         //Compute 128-bit KL value (also W0). KL is set to the leftmost 128 bits of Key.
-        byte[] W0 = Arrays.copyOf(key, 16);
+        int[] W0 = new int[4];
+        for (int i = 0; i < 4; i++)
+            W0[i] = bytesToInt(key, offset + i * 4);
         //KR is set to the remaining bits of K (if any), right-padded with zeros to a 128-bit value.
-        byte[] KR = (mKeyLength > 16) ? Arrays.copyOfRange(key, 16, 31) : new byte[16];
+        int[] KR = new int[4];
+        for (int i = 0; i < (mKeyLength - 16) / 4; i++)
+            KR[i] = bytesToInt(key, offset + 16 + i * 4);
 
         //Compute intermediate values W0, W1, W2, and W3
-        byte[] W1 = XOR(FO(W0, CK1), KR);
-        byte[] W2 = XOR(FE(W1, CK2), W0);
-        byte[] W3 = XOR(FO(W2, CK3), W1);
-
-        //Compute encryption round keys
-        mEK = new byte[17][];
-        mEK[0] = XOR(W0, ROR(W1, 19));
-        mEK[1] = XOR(W1, ROR(W2, 19));
-        mEK[2] = XOR(W2, ROR(W3, 19));
-        mEK[3] = XOR(ROR(W0, 19), W3);
-        mEK[4] = XOR(W0, ROR(W1, 31));
-        mEK[5] = XOR(W1, ROR(W2, 31));
-        mEK[6] = XOR(W2, ROR(W3, 31));
-        mEK[7] = XOR(ROR(W0, 31), W3);
-        mEK[8] = XOR(W0, ROL(W1, 61));
-        mEK[9] = XOR(W1, ROL(W2, 61));
-        mEK[10] = XOR(W2, ROL(W3, 61));
-        mEK[11] = XOR(ROL(W0, 61), W3);
-        mEK[12] = XOR(W0, ROL(W1, 31));
-        mEK[13] = XOR(W1, ROL(W2, 31));
-        mEK[14] = XOR(W2, ROL(W3, 31));
-        mEK[15] = XOR(ROL(W0, 31), W3);
-        mEK[16] = XOR(W0, ROL(W1, 19));
+        int[] W1 = W0.clone();
+        FO(W1, CK1);
+        xorInto(W1, KR);
+        int[] W2 = W1.clone();
+        FE(W2, CK2);
+        xorInto(W2, W0);
+        int[] W3 = W2.clone();
+        FO(W3, CK3);
+        xorInto(W3, W1);
+
+        //Compute encryption round keys, rotations are to the right, left rotation by n is right rotation by 128 - n
+        int[] EK = new int[(mNumberRounds + 1) * 4];
+        roundKey(EK, 0, W0, W1, 19);
+        roundKey(EK, 1, W1, W2, 19);
+        roundKey(EK, 2, W2, W3, 19);
+        roundKey(EK, 3, W3, W0, 19);
+        roundKey(EK, 4, W0, W1, 31);
+        roundKey(EK, 5, W1, W2, 31);
+        roundKey(EK, 6, W2, W3, 31);
+        roundKey(EK, 7, W3, W0, 31);
+        roundKey(EK, 8, W0, W1, 128 - 61);
+        roundKey(EK, 9, W1, W2, 128 - 61);
+        roundKey(EK, 10, W2, W3, 128 - 61);
+        roundKey(EK, 11, W3, W0, 128 - 61);
+        roundKey(EK, 12, W0, W1, 128 - 31);
+        roundKey(EK, 13, W1, W2, 128 - 31);
+        roundKey(EK, 14, W2, W3, 128 - 31);
+        roundKey(EK, 15, W3, W0, 128 - 31);
+        roundKey(EK, 16, W0, W1, 128 - 19);
 
         //Compute decryption round keys from the encryption round keys
-        mDK = new byte[mNumberRounds + 1][];
-        mDK[0] = mEK[mNumberRounds];
+        int[] DK = new int[EK.length];
+        int last = mNumberRounds * 4;
+        System.arraycopy(EK, last, DK, 0, 4);
+        int[] block = new int[4];
         for (int i = 1; i < mNumberRounds; i++)
-            mDK[i] = A(mEK[mNumberRounds - i]);
-        mDK[mNumberRounds] = mEK[0];
+        {
+            System.arraycopy(EK, last - i * 4, block, 0, 4);
+            A(block);
+            System.arraycopy(block, 0, DK, i * 4, 4);
+        }
+        System.arraycopy(EK, 0, DK, last, 4);
+        mEKWords = EK;
+        mDKWords = DK;
+
+        //Intermediate values are as good as the master key, don't leave them on the heap
+        wipe(W0, KR, W1, W2, W3, block);
+    }
+
+    /**
+     * Store round key X ^ (Y >>> rotation) at specified index, Y is rotated as a single 128-bit value. Round keys past
+     * the number of rounds for current key size are not needed and are skipped.
+     */
+    private static void roundKey(int[] roundKeys, int index, int[] X, int[] Y, int rotation)
+    {
+        if (index * 4 >= roundKeys.length)
+            return;
+        int words = rotation >>> 5;
+        int bits = rotation & 31;
+        for (int i = 0; i < 4; i++)
+        {
+            int high = Y[(i - words) & 3];
+            int low = Y[(i - words - 1) & 3];
+            int rotated = (bits == 0) ? high : (high >>> bits) | (low << (32 - bits));
+            roundKeys[index * 4 + i] = X[i] ^ rotated;
+        }
+    }
+
+    private static void xorInto(int[] x, int[] y)
+    {
+        for (int i = 0; i < 4; i++)
+            x[i] ^= y[i];
+    }
+
+    private static void wipe(int[]... arrays)
+    {
+        for (int[] array : arrays)
+            Arrays.fill(array, 0);
     }
 
    /*
@@ -662,34 +706,110 @@ public class AriaCipher
     */
     public byte[] encrypt(byte[] plainText)
     {
-        return crypt(plainText, mEK);
+        return crypt(plainText, mEKWords);
+    }
+
+    /**
+     * Encrypt single 16-byte block. Input and output may overlap.
+     */
+    public void encryptBlock(byte[] in, int inOffset, byte[] out, int outOffset)
+    {
+        cryptBlock(in, inOffset, out, outOffset, mEKWords);
     }
 
-    private byte[] crypt(byte[] text, byte[][] keys)
+    private byte[] crypt(byte[] text, int[] keys)
     {
         int length = text.length;
-        if (length % mKeyLength != 0)
+        if (length % BLOCK_SIZE != 0)
         {
-            throw new IllegalArgumentException("Text length must be a multiple of key length. Current key length is " +
-                    String.valueOf(mKeyLength) + " bytes.");
+            throw new IllegalArgumentException("Text length must be a multiple of block size. Block size is " +
+                    String.valueOf(BLOCK_SIZE) + " bytes.");
         }
         else
         {
             byte[] result = new byte[length];
-            byte[] block = new byte[mKeyLength];
-            int nBlocks = length / mKeyLength;
-            for (int i = 0; i < nBlocks; i++)
+            for (int currentPos = 0; currentPos < length; currentPos += BLOCK_SIZE)
+                cryptBlock(text, currentPos, result, currentPos, keys);
+            return result;
+        }
+    }
+
+    /**
+     * Table-driven version of the rounds above. The state is kept as four big-endian words; substitution and the
+     * in-word part of diffusion layer A are done by {@link Tables} lookups, the rest of A by word and byte shuffles.
+     */
+    private void cryptBlock(byte[] in, int inOffset, byte[] out, int outOffset, int[] keys)
+    {
+        final int[] S1 = Tables.S1;
+        final int[] S2 = Tables.S2;
+        final int[] X1 = Tables.X1;
+        final int[] X2 = Tables.X2;
+
+        int x0 = bytesToInt(in, inOffset);
+        int x1 = bytesToInt(in, inOffset + 4);
+        int x2 = bytesToInt(in, inOffset + 8);
+        int x3 = bytesToInt(in, inOffset + 12);
+        int k = 0;
+        int t;
+
+        //Rounds 1 .. n-1, FO on odd rounds and FE on even rounds
+        for (int round = 1; round < mNumberRounds; round++)
+        {
+            x0 ^= keys[k];
+            x1 ^= keys[k + 1];
+            x2 ^= keys[k + 2];
+            x3 ^= keys[k + 3];
+            k += 4;
+            if ((round & 1) == 1)
             {
-                int currentPos = i * mKeyLength;
-                System.arraycopy(text, currentPos, block, 0, mKeyLength);
-                block = FO(block, keys[0]);
-                for (int j = 1; j < mNumberRounds - 1; j++)
-                    block = (j % 2) == 0 ? FO(block, keys[j]) : FE(block, keys[j]);
-                block = XOR(SL2(XOR(block, keys[mNumberRounds - 1])), keys[mNumberRounds]);
-                System.arraycopy(block, 0, result, currentPos, mKeyLength);
+                //SL1
+                x0 = S1[x0 >>> 24] ^ S2[(x0 >>> 16) & 0xff] ^ X1[(x0 >>> 8) & 0xff] ^ X2[x0 & 0xff];
+                x1 = S1[x1 >>> 24] ^ S2[(x1 >>> 16) & 0xff] ^ X1[(x1 >>> 8) & 0xff] ^ X2[x1 & 0xff];
+                x2 = S1[x2 >>> 24] ^ S2[(x2 >>> 16) & 0xff] ^ X1[(x2 >>> 8) & 0xff] ^ X2[x2 & 0xff];
+                x3 = S1[x3 >>> 24] ^ S2[(x3 >>> 16) & 0xff] ^ X1[(x3 >>> 8) & 0xff] ^ X2[x3 & 0xff];
+                x1 ^= x2; x2 ^= x3; x0 ^= x1; x3 ^= x1; x2 ^= x0; x1 ^= x2;
+                x1 = ((x1 << 8) & 0xff00ff00) ^ ((x1 >>> 8) & 0x00ff00ff);
+                x2 = Integer.rotateRight(x2, 16);
+                x3 = Integer.reverseBytes(x3);
             }
-            return result;
+            else
+            {
+                //SL2
+                x0 = X1[x0 >>> 24] ^ X2[(x0 >>> 16) & 0xff] ^ S1[(x0 >>> 8) & 0xff] ^ S2[x0 & 0xff];
+                x1 = X1[x1 >>> 24] ^ X2[(x1 >>> 16) & 0xff] ^ S1[(x1 >>> 8) & 0xff] ^ S2[x1 & 0xff];
+                x2 = X1[x2 >>> 24] ^ X2[(x2 >>> 16) & 0xff] ^ S1[(x2 >>> 8) & 0xff] ^ S2[x2 & 0xff];
+                x3 = X1[x3 >>> 24] ^ X2[(x3 >>> 16) & 0xff] ^ S1[(x3 >>> 8) & 0xff] ^ S2[x3 & 0xff];
+                x1 ^= x2; x2 ^= x3; x0 ^= x1; x3 ^= x1; x2 ^= x0; x1 ^= x2;
+                x3 = ((x3 << 8) & 0xff00ff00) ^ ((x3 >>> 8) & 0x00ff00ff);
+                x0 = Integer.rotateRight(x0, 16);
+                x1 = Integer.reverseBytes(x1);
+            }
+            x1 ^= x2; x2 ^= x3; x0 ^= x1; x3 ^= x1; x2 ^= x0; x1 ^= x2;
         }
+
+        //Round n: SL2 without diffusion, followed by the extra key addition
+        x0 ^= keys[k];
+        x1 ^= keys[k + 1];
+        x2 ^= keys[k + 2];
+        x3 ^= keys[k + 3];
+        k += 4;
+        t = SL2Word(x0) ^ keys[k];
+        intToBytes(t, out, outOffset);
+        t = SL2Word(x1) ^ keys[k + 1];
+        intToBytes(t, out, outOffset + 4);
+        t = SL2Word(x2) ^ keys[k + 2];
+        intToBytes(t, out, outOffset + 8);
+        t = SL2Word(x3) ^ keys[k + 3];
+        intToBytes(t, out, outOffset + 12);
+    }
+
+    /**
+     * Type 2 substitution layer applied to a single big-endian word.
+     */
+    private static int SL2Word(int x)
+    {
+        return (unsigned(SB3[x >>> 24]) << 24) | (unsigned(SB4[(x >>> 16) & 0xff]) << 16) |
+                (unsigned(SB1[(x >>> 8) & 0xff]) << 8) | unsigned(SB2[x & 0xff]);
     }
 
    /*
@@ -704,12 +824,29 @@ public class AriaCipher
     */
     public byte[] decrypt(byte[] cipherText)
     {
-        return crypt(cipherText, mDK);
+        return crypt(cipherText, mDKWords);
+    }
+
+    /**
+     * Decrypt single 16-byte block. Input and output may overlap.
+     */
+    public void decryptBlock(byte[] in, int inOffset, byte[] out, int outOffset)
+    {
+        cryptBlock(in, inOffset, out, outOffset, mDKWords);
     }
 
     public AriaCipher(byte[] key)
     {
-        scheduleKey(key);
+        scheduleKey(key, 0, key.length);
+    }
+
+    /**
+     * Create cipher from master key stored in a region of a larger array, so callers holding key material in their own
+     * buffers don't need to copy it out first.
+     */
+    public AriaCipher(byte[] key, int offset, int length)
+    {
+        scheduleKey(key, offset, length);
     }
 
    // Utility functions ------------------------------------------------------------------------------------------------
@@ -779,4 +916,24 @@ public class AriaCipher
     {
         return b & 0xff;
     }
+
+    /**
+     * Read big-endian 32-bit word from array starting at specified offset.
+     */
+    public static int bytesToInt(byte[] array, int offset)
+    {
+        return (array[offset] << 24) | (unsigned(array[offset + 1]) << 16) | (unsigned(array[offset + 2]) << 8) |
+                unsigned(array[offset + 3]);
+    }
+
+    /**
+     * Write 32-bit word to array in big-endian order starting at specified offset.
+     */
+    public static void intToBytes(int value, byte[] array, int offset)
+    {
+        array[offset] = (byte) (value >>> 24);
+        array[offset + 1] = (byte) (value >>> 16);
+        array[offset + 2] = (byte) (value >>> 8);
+        array[offset + 3] = (byte) value;
+    }
 }
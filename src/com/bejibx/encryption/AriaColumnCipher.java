@@ -0,0 +1,242 @@
+package com.bejibx.encryption;
+
+import java.util.Spliterator;
+import java.util.function.IntConsumer;
+import java.util.stream.StreamSupport;
+
+/**
+ * Encryption of columnar batches with ARIA.
+ *
+ * A column is a single contiguous buffer holding all values of the column one after another. Values are either fixed
+ * width, or variable length described by an offsets array: value i occupies bytes offsets[i] .. offsets[i + 1] - 1,
+ * so for n rows the array holds n + 1 entries. Every value is processed exactly like {@link AriaCipher#encrypt} would
+ * process it on its own, hence each value length must be a multiple of {@link AriaCipher#BLOCK_SIZE}. Since ARIA keeps
+ * the length of the text, the result is a buffer of the same size described by the very same offsets.
+ *
+ * Parallel processing splits row ranges with a {@link Spliterator} and runs them in the common fork/join pool. Rows are
+ * processed in place of the pre-allocated output buffer, nothing is allocated per row.
+ */
+public class AriaColumnCipher
+{
+    /**
+     * Row ranges holding less than this amount of bytes are not split any further. Smaller tasks cost more in fork/join
+     * overhead than they gain from running on another core.
+     */
+    private static final int MIN_SPLIT_BYTES = 64 * 1024;
+
+    private final AriaCipher mCipher;
+
+    public AriaColumnCipher(AriaCipher cipher)
+    {
+        mCipher = cipher;
+    }
+
+    /**
+     * Encrypt column of fixed-width values.
+     *
+     * @param values      column buffer, its length must be a multiple of value length.
+     * @param valueLength length of every value in bytes.
+     * @param parallel    whether to split rows across the common pool.
+     * @return NEW buffer with encrypted values at the same positions.
+     */
+    public byte[] encryptFixedWidth(byte[] values, int valueLength, boolean parallel)
+    {
+        byte[] result = new byte[values.length];
+        cryptFixedWidth(values, valueLength, result, parallel, true);
+        return result;
+    }
+
+    /**
+     * Decrypt column of fixed-width values. See {@link #encryptFixedWidth(byte[], int, boolean)}.
+     */
+    public byte[] decryptFixedWidth(byte[] values, int valueLength, boolean parallel)
+    {
+        byte[] result = new byte[values.length];
+        cryptFixedWidth(values, valueLength, result, parallel, false);
+        return result;
+    }
+
+    /**
+     * Encrypt column of variable-length values.
+     *
+     * @param values   column buffer.
+     * @param offsets  value boundaries, n + 1 entries for n rows. Describes the result buffer as well.
+     * @param parallel whether to split rows across the common pool.
+     * @return NEW buffer of the same length as values with encrypted values at the same offsets.
+     */
+    public byte[] encrypt(byte[] values, int[] offsets, boolean parallel)
+    {
+        byte[] result = new byte[values.length];
+        crypt(values, offsets, result, parallel, true);
+        return result;
+    }
+
+    /**
+     * Decrypt column of variable-length values. See {@link #encrypt(byte[], int[], boolean)}.
+     */
+    public byte[] decrypt(byte[] values, int[] offsets, boolean parallel)
+    {
+        byte[] result = new byte[values.length];
+        crypt(values, offsets, result, parallel, false);
+        return result;
+    }
+
+    /**
+     * Same as {@link #encrypt(byte[], int[], boolean)} but writes to the caller-owned buffer. Output may be the input
+     * buffer itself.
+     */
+    public void encrypt(byte[] values, int[] offsets, byte[] out, boolean parallel)
+    {
+        crypt(values, offsets, out, parallel, true);
+    }
+
+    /**
+     * Same as {@link #decrypt(byte[], int[], boolean)} but writes to the caller-owned buffer. Output may be the input
+     * buffer itself.
+     */
+    public void decrypt(byte[] values, int[] offsets, byte[] out, boolean parallel)
+    {
+        crypt(values, offsets, out, parallel, false);
+    }
+
+    private void cryptFixedWidth(byte[] values, int valueLength, byte[] out, boolean parallel, boolean encrypt)
+    {
+        if (valueLength <= 0 || valueLength % AriaCipher.BLOCK_SIZE != 0)
+        {
+            throw new IllegalArgumentException("Value length must be a positive multiple of block size. Block size is " +
+                    String.valueOf(AriaCipher.BLOCK_SIZE) + " bytes.");
+        }
+        if (values.length % valueLength != 0)
+        {
+            throw new IllegalArgumentException("Column length must be a multiple of value length.");
+        }
+        checkOutput(values.length, out);
+        int nRows = values.length / valueLength;
+        run(new RowSpliterator(0, nRows, null, valueLength), values, null, valueLength, out, parallel, encrypt);
+    }
+
+    private void crypt(byte[] values, int[] offsets, byte[] out, boolean parallel, boolean encrypt)
+    {
+        if (offsets.length == 0)
+        {
+            throw new IllegalArgumentException("Offsets array must hold at least one entry.");
+        }
+        if (offsets[0] < 0 || offsets[offsets.length - 1] > values.length)
+        {
+            throw new IllegalArgumentException("Offsets are out of column bounds.");
+        }
+        //Validate every row up front so a bad row doesn't leave output half processed
+        for (int i = 1; i < offsets.length; i++)
+        {
+            int length = offsets[i] - offsets[i - 1];
+            if (length < 0 || length % AriaCipher.BLOCK_SIZE != 0)
+            {
+                throw new IllegalArgumentException("Value length must be a multiple of block size. Row " +
+                        String.valueOf(i - 1) + " is " + String.valueOf(length) + " bytes long.");
+            }
+        }
+        checkOutput(values.length, out);
+        run(new RowSpliterator(0, offsets.length - 1, offsets, 0), values, offsets, 0, out, parallel, encrypt);
+    }
+
+    private static void checkOutput(int length, byte[] out)
+    {
+        if (out.length < length)
+        {
+            throw new IllegalArgumentException("Output buffer is too small. Required " + String.valueOf(length) +
+                    " bytes.");
+        }
+    }
+
+    private void run(RowSpliterator rows, final byte[] in, final int[] offsets, final int valueLength, final byte[] out,
+                     boolean parallel, final boolean encrypt)
+    {
+        final AriaCipher cipher = mCipher;
+        IntConsumer action = new IntConsumer()
+        {
+            @Override
+            public void accept(int row)
+            {
+                int from = (offsets == null) ? row * valueLength : offsets[row];
+                int to = (offsets == null) ? from + valueLength : offsets[row + 1];
+                if (encrypt)
+                {
+                    for (int pos = from; pos < to; pos += AriaCipher.BLOCK_SIZE)
+                        cipher.encryptBlock(in, pos, out, pos);
+                }
+                else
+                {
+                    for (int pos = from; pos < to; pos += AriaCipher.BLOCK_SIZE)
+                        cipher.decryptBlock(in, pos, out, pos);
+                }
+            }
+        };
+        StreamSupport.intStream(rows, parallel).forEach(action);
+    }
+
+    /**
+     * Spliterator over row indices of a column. Splits in the middle of the row range, and stops splitting once a range
+     * covers less than {@link #MIN_SPLIT_BYTES} of column data.
+     */
+    private static final class RowSpliterator implements Spliterator.OfInt
+    {
+        private final int[] mOffsets;
+        private final int mValueLength;
+        private int mFrom;
+        private final int mTo;
+
+        RowSpliterator(int from, int to, int[] offsets, int valueLength)
+        {
+            mFrom = from;
+            mTo = to;
+            mOffsets = offsets;
+            mValueLength = valueLength;
+        }
+
+        private long bytes(int from, int to)
+        {
+            return (mOffsets == null) ? (long) (to - from) * mValueLength : mOffsets[to] - mOffsets[from];
+        }
+
+        @Override
+        public OfInt trySplit()
+        {
+            int middle = (mFrom + mTo) >>> 1;
+            if (middle == mFrom || bytes(mFrom, mTo) < MIN_SPLIT_BYTES)
+                return null;
+            RowSpliterator prefix = new RowSpliterator(mFrom, middle, mOffsets, mValueLength);
+            mFrom = middle;
+            return prefix;
+        }
+
+        @Override
+        public boolean tryAdvance(IntConsumer action)
+        {
+            if (mFrom >= mTo)
+                return false;
+            action.accept(mFrom++);
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(IntConsumer action)
+        {
+            int to = mTo;
+            for (int row = mFrom; row < to; row++)
+                action.accept(row);
+            mFrom = to;
+        }
+
+        @Override
+        public long estimateSize()
+        {
+            return mTo - mFrom;
+        }
+
+        @Override
+        public int characteristics()
+        {
+            return ORDERED | SIZED | SUBSIZED | IMMUTABLE | NONNULL | DISTINCT;
+        }
+    }
+}
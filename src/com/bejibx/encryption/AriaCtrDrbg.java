@@ -0,0 +1,524 @@
+package com.bejibx.encryption;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.SecureRandomParameters;
+import java.security.SecureRandomSpi;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * CTR_DRBG deterministic random bit generator from NIST SP 800-90A with ARIA as the block cipher, exposed as
+ * {@link SecureRandomSpi}. Obtain it through {@link AriaProvider}:
+ * <pre>
+ * SecureRandom random = SecureRandom.getInstance(AriaProvider.CTR_DRBG, new AriaProvider());
+ * SecureRandom custom = SecureRandom.getInstance(AriaProvider.CTR_DRBG,
+ *         new AriaCtrDrbg.Parameters(32, 1 &lt;&lt; 16), new AriaProvider());
+ * </pre>
+ *
+ * Instance holds a fixed array of independent generator states, one per processor rounded up to a power of two, each
+ * instantiated from fresh entropy on first use. A call claims a free state with a single compare-and-set, starting at
+ * a slot picked by thread id and moving on to the next slot if that one is busy, and releases it when done. So there
+ * are no locks on the hot path, running threads rarely meet in the same slot, and the number of instantiations is
+ * bounded by the number of slots no matter how many (virtual) threads use the generator. The provider registers the
+ * algorithm as thread safe, which keeps {@link SecureRandom} from synchronizing calls either.
+ *
+ * The generator runs without derivation function, seeding from the SUN provider's DRBG as full entropy source. The
+ * source is named explicitly: with {@link AriaProvider} installed as the most preferred provider the default
+ * {@link SecureRandom} is this very class, which would end up seeding itself. Requests are served from a per-state
+ * buffer refilled by one multi-block generate call; consumed buffer bytes are wiped right away. Requests larger than
+ * the buffer go straight through generate.
+ *
+ * Without derivation function additional input can't be longer than the seed length, key size plus 16 bytes, so
+ * {@link SecureRandom#setSeed(byte[])} rejects longer seeds. A seed is mixed into every state as additional input of a
+ * reseed, lazily, by the next call claiming that state.
+ */
+public class AriaCtrDrbg extends SecureRandomSpi
+{
+    /**
+     * Generator parameters. Key size selects ARIA-128, ARIA-192 or ARIA-256, reseed interval is the number of generate
+     * requests after which a generator state is reseeded.
+     */
+    public static final class Parameters implements SecureRandomParameters
+    {
+        private final int mKeySize;
+        private final long mReseedInterval;
+
+        public Parameters(int keySize, long reseedInterval)
+        {
+            if (keySize != 16 && keySize != 24 && keySize != 32)
+            {
+                throw new IllegalArgumentException("Illegal key size. Only 16, 24 and 32 byte keys are valid.");
+            }
+            if (reseedInterval <= 0 || reseedInterval > MAX_RESEED_INTERVAL)
+            {
+                throw new IllegalArgumentException("Reseed interval must be between 1 and 2^48.");
+            }
+            mKeySize = keySize;
+            mReseedInterval = reseedInterval;
+        }
+
+        public int getKeySize()
+        {
+            return mKeySize;
+        }
+
+        public long getReseedInterval()
+        {
+            return mReseedInterval;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "ARIA-" + String.valueOf(mKeySize * 8) + " CTR_DRBG, reseed interval " +
+                    String.valueOf(mReseedInterval);
+        }
+    }
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Maximum number of requests between reseeds allowed by SP 800-90A for CTR_DRBG.
+     */
+    private static final long MAX_RESEED_INTERVAL = 1L << 48;
+
+    /**
+     * Maximum number of bytes per generate request, 2^19 bits.
+     */
+    private static final int MAX_REQUEST = 1 << 16;
+
+    /**
+     * Size of per-state output buffer, generated with a single request.
+     */
+    private static final int BUFFER_SIZE = 4096;
+
+    private static final Parameters DEFAULT = new Parameters(32, 1L << 20);
+
+    private static final SecureRandom ENTROPY = openEntropySource();
+
+    /**
+     * Distance between two slot flags in {@link #mBusy}, 16 ints keep every flag on its own 64-byte cache line.
+     */
+    private static final int FLAG_STRIDE = 16;
+
+    /**
+     * Number of states instantiated by this process so far, used as personalization so no two states start equal.
+     */
+    private static final AtomicLong INSTANTIATIONS = new AtomicLong();
+
+    private final int mKeySize;
+    private final long mReseedInterval;
+
+    /**
+     * Generator states, created lazily by whoever claims the slot first. Slot i is only touched while flag i in
+     * {@link #mBusy} is held, the flag's volatile write and CAS also publish the state to the next owner.
+     */
+    private final State[] mStates;
+    private final AtomicIntegerArray mBusy;
+
+    /**
+     * Seeds passed to {@link #engineSetSeed(byte[])} and not mixed into a slot's state yet, one entry per slot.
+     */
+    private final AtomicReferenceArray<byte[]> mPendingSeeds;
+
+    public AriaCtrDrbg()
+    {
+        this(null);
+    }
+
+    public AriaCtrDrbg(SecureRandomParameters parameters)
+    {
+        super(parameters);
+        if (parameters != null && !(parameters instanceof Parameters))
+        {
+            throw new IllegalArgumentException("Unsupported parameters: " + parameters.getClass().getName());
+        }
+        Parameters p = (parameters == null) ? DEFAULT : (Parameters) parameters;
+        mKeySize = p.getKeySize();
+        mReseedInterval = p.getReseedInterval();
+        int slots = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1;
+        mStates = new State[slots];
+        mBusy = new AtomicIntegerArray(slots * FLAG_STRIDE);
+        mPendingSeeds = new AtomicReferenceArray<byte[]>(slots);
+    }
+
+    private static SecureRandom openEntropySource()
+    {
+        try
+        {
+            return SecureRandom.getInstance("DRBG", "SUN");
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IllegalStateException("SUN DRBG entropy source is not available.", e);
+        }
+    }
+
+    @Override
+    protected void engineNextBytes(byte[] bytes)
+    {
+        int slot = claim();
+        try
+        {
+            state(slot).nextBytes(bytes);
+        }
+        finally
+        {
+            release(slot);
+        }
+    }
+
+    /**
+     * Queue seed for every slot, each state reseeds with it as additional input on its next use. Nothing is reseeded
+     * here, so the call neither waits for busy slots nor blocks anybody on the entropy source.
+     *
+     * @throws IllegalArgumentException if seed is longer than seed length.
+     */
+    @Override
+    protected void engineSetSeed(byte[] seed)
+    {
+        int seedLength = mKeySize + AriaCipher.BLOCK_SIZE;
+        if (seed.length > seedLength)
+        {
+            throw new IllegalArgumentException("Seed must not be longer than " + String.valueOf(seedLength) +
+                    " bytes.");
+        }
+        for (int slot = 0; slot < mStates.length; slot++)
+        {
+            //Seeds queued before are kept by XOR'ing new one into them
+            while (true)
+            {
+                byte[] pending = mPendingSeeds.get(slot);
+                byte[] combined = new byte[seedLength];
+                if (pending != null)
+                    System.arraycopy(pending, 0, combined, 0, seedLength);
+                for (int i = 0; i < seed.length; i++)
+                    combined[i] ^= seed[i];
+                if (mPendingSeeds.compareAndSet(slot, pending, combined))
+                    break;
+            }
+        }
+    }
+
+    @Override
+    protected byte[] engineGenerateSeed(int numBytes)
+    {
+        return ENTROPY.generateSeed(numBytes);
+    }
+
+    @Override
+    protected SecureRandomParameters engineGetParameters()
+    {
+        return new Parameters(mKeySize, mReseedInterval);
+    }
+
+    /**
+     * Claim a free slot. Probing starts at a slot derived from thread id, so a thread tends to come back to the same
+     * state, and walks on to the next slot when that one is taken. After a full round of busy slots the thread yields
+     * before trying again, that only happens with more runnable threads than processors.
+     */
+    private int claim()
+    {
+        int mask = mStates.length - 1;
+        long id = Thread.currentThread().getId();
+        int slot = (int) (id ^ (id >>> 32)) * 0x9e3779b9 >>> 16 & mask;
+        while (true)
+        {
+            for (int i = 0; i <= mask; i++)
+            {
+                if (mBusy.get(slot * FLAG_STRIDE) == 0 && mBusy.compareAndSet(slot * FLAG_STRIDE, 0, 1))
+                    return slot;
+                slot = (slot + 1) & mask;
+            }
+            Thread.yield();
+        }
+    }
+
+    private void release(int slot)
+    {
+        mBusy.set(slot * FLAG_STRIDE, 0);
+    }
+
+    /**
+     * State of claimed slot, instantiated on first use, with pending seed mixed in.
+     */
+    private State state(int slot)
+    {
+        State state = mStates[slot];
+        if (state == null)
+        {
+            state = State.instantiate(mKeySize, mReseedInterval);
+            mStates[slot] = state;
+        }
+        byte[] seed = mPendingSeeds.getAndSet(slot, null);
+        if (seed != null)
+        {
+            state.reseed(seed);
+            Arrays.fill(seed, (byte) 0);
+        }
+        return state;
+    }
+
+    /**
+     * Single generator: Key, V and reseed counter as named by SP 800-90A, plus output buffer. Not thread safe, callers
+     * own it through a claimed slot. Package-private constructor, {@link #reseed(byte[], byte[])} and
+     * {@link #generate(byte[], int, int)} take entropy input from the caller, so known-answer tests can drive the
+     * mechanism directly.
+     */
+    static final class State
+    {
+        private final int mKeySize;
+        private final int mSeedLength;
+        private final long mReseedInterval;
+        private AriaCipher mKey;
+        private final byte[] mV = new byte[AriaCipher.BLOCK_SIZE];
+        private long mReseedCounter;
+        private final byte[] mBuffer = new byte[BUFFER_SIZE];
+        private int mBufferPosition = BUFFER_SIZE;
+        private final byte[] mBlock = new byte[AriaCipher.BLOCK_SIZE];
+
+       /*
+        * SP 800-90A, 10.2.1.3.1  Instantiation When a Derivation Function is Not Used ---------------------------------
+        *
+        *    1. temp = len (personalization_string).
+        *    2. If (temp < seedlen), then personalization_string =
+        *       personalization_string || 0^(seedlen - temp).
+        *    3. seed_material = entropy_input XOR personalization_string.
+        *    4. Key = 0^keylen.
+        *    5. V = 0^blocklen.
+        *    6. (Key, V) = CTR_DRBG_Update (seed_material, Key, V).
+        *    7. reseed_counter = 1.
+        * --------------------------------------------------------------------------------------------------------------
+        */
+        /**
+         * @param entropyInput    exactly seed length (key size + 16) bytes.
+         * @param personalization at most seed length bytes, may be null.
+         */
+        State(int keySize, long reseedInterval, byte[] entropyInput, byte[] personalization)
+        {
+            mKeySize = keySize;
+            mSeedLength = keySize + AriaCipher.BLOCK_SIZE;
+            mReseedInterval = reseedInterval;
+            byte[] seedMaterial = seedMaterial(entropyInput, personalization);
+            mKey = new AriaCipher(new byte[mKeySize]);
+            update(seedMaterial);
+            Arrays.fill(seedMaterial, (byte) 0);
+            mReseedCounter = 1;
+        }
+
+        /**
+         * Instantiate from the entropy source.
+         */
+        static State instantiate(int keySize, long reseedInterval)
+        {
+            int seedLength = keySize + AriaCipher.BLOCK_SIZE;
+            byte[] entropyInput = ENTROPY.generateSeed(seedLength);
+            //Personalize with a process-wide counter, so states never start equal even if entropy source misbehaves
+            byte[] personalization = new byte[seedLength];
+            writeLong(INSTANTIATIONS.incrementAndGet(), personalization, 0);
+            writeLong(System.nanoTime(), personalization, 8);
+            try
+            {
+                return new State(keySize, reseedInterval, entropyInput, personalization);
+            }
+            finally
+            {
+                Arrays.fill(entropyInput, (byte) 0);
+            }
+        }
+
+        /**
+         * entropy_input XOR (input || 0^(seedlen - len (input))), input longer than seedlen is rejected.
+         *
+         * @return NEW array, caller must wipe it.
+         */
+        private byte[] seedMaterial(byte[] entropyInput, byte[] input)
+        {
+            if (entropyInput.length != mSeedLength)
+            {
+                throw new IllegalArgumentException("Entropy input must be " + String.valueOf(mSeedLength) +
+                        " bytes long.");
+            }
+            if (input != null && input.length > mSeedLength)
+            {
+                throw new IllegalArgumentException("Input must not be longer than " + String.valueOf(mSeedLength) +
+                        " bytes.");
+            }
+            byte[] seedMaterial = entropyInput.clone();
+            if (input != null)
+            {
+                for (int i = 0; i < input.length; i++)
+                    seedMaterial[i] ^= input[i];
+            }
+            return seedMaterial;
+        }
+
+       /*
+        * SP 800-90A, 10.2.1.4.1  Reseeding When a Derivation Function is Not Used -------------------------------------
+        *
+        *    1. temp = len (additional_input).
+        *    2. If (temp < seedlen), then additional_input =
+        *       additional_input || 0^(seedlen - temp).
+        *    3. seed_material = entropy_input XOR additional_input.
+        *    4. (Key, V) = CTR_DRBG_Update (seed_material, Key, V).
+        *    5. reseed_counter = 1.
+        * --------------------------------------------------------------------------------------------------------------
+        */
+        void reseed(byte[] entropyInput, byte[] additionalInput)
+        {
+            byte[] seedMaterial = seedMaterial(entropyInput, additionalInput);
+            update(seedMaterial);
+            Arrays.fill(seedMaterial, (byte) 0);
+            mReseedCounter = 1;
+            //Output generated before reseed must not be handed out after it
+            Arrays.fill(mBuffer, (byte) 0);
+            mBufferPosition = BUFFER_SIZE;
+        }
+
+        /**
+         * Reseed from the entropy source.
+         *
+         * @param additionalInput at most seed length bytes, may be null.
+         */
+        void reseed(byte[] additionalInput)
+        {
+            byte[] entropyInput = ENTROPY.generateSeed(mSeedLength);
+            try
+            {
+                reseed(entropyInput, additionalInput);
+            }
+            finally
+            {
+                Arrays.fill(entropyInput, (byte) 0);
+            }
+        }
+
+        void nextBytes(byte[] bytes)
+        {
+            int offset = 0;
+            int length = bytes.length;
+            while (length > 0)
+            {
+                if (mBufferPosition == BUFFER_SIZE && length >= BUFFER_SIZE)
+                {
+                    //Big request with empty buffer, generate directly into output
+                    int chunk = Math.min(length, MAX_REQUEST);
+                    generate(bytes, offset, chunk);
+                    offset += chunk;
+                    length -= chunk;
+                    continue;
+                }
+                if (mBufferPosition == BUFFER_SIZE)
+                {
+                    generate(mBuffer, 0, BUFFER_SIZE);
+                    mBufferPosition = 0;
+                }
+                int chunk = Math.min(length, BUFFER_SIZE - mBufferPosition);
+                System.arraycopy(mBuffer, mBufferPosition, bytes, offset, chunk);
+                Arrays.fill(mBuffer, mBufferPosition, mBufferPosition + chunk, (byte) 0);
+                mBufferPosition += chunk;
+                offset += chunk;
+                length -= chunk;
+            }
+        }
+
+       /*
+        * SP 800-90A, 10.2.1.5.1  Generating Pseudorandom Bits When a Derivation Function is Not Used -------------------
+        *
+        *    1. If reseed_counter > reseed_interval, then return an indication
+        *       that a reseed is required.
+        *    2. If (additional_input != Null), then ...
+        *       Else additional_input = 0^seedlen.
+        *    3. temp = Null.
+        *    4. While (len (temp) < requested_number_of_bits) do:
+        *       4.1 If ctr_len < blocklen
+        *           ...
+        *           Else V = (V+1) mod 2^blocklen.
+        *       4.2 output_block = Block_Encrypt (Key, V).
+        *       4.3 temp = temp || output_block.
+        *    5. returned_bits = leftmost (temp, requested_number_of_bits).
+        *    6. (Key, V) = CTR_DRBG_Update (additional_input, Key, V).
+        *    7. reseed_counter = reseed_counter + 1.
+        * --------------------------------------------------------------------------------------------------------------
+        */
+        void generate(byte[] out, int offset, int length)
+        {
+            if (mReseedCounter > mReseedInterval)
+            {
+                reseed(null);
+            }
+            int end = offset + length;
+            int full = end - length % AriaCipher.BLOCK_SIZE;
+            for (; offset < full; offset += AriaCipher.BLOCK_SIZE)
+            {
+                increment(mV);
+                mKey.encryptBlock(mV, 0, out, offset);
+            }
+            if (offset < end)
+            {
+                increment(mV);
+                mKey.encryptBlock(mV, 0, mBlock, 0);
+                System.arraycopy(mBlock, 0, out, offset, end - offset);
+                Arrays.fill(mBlock, (byte) 0);
+            }
+            update(null);
+            mReseedCounter++;
+        }
+
+       /*
+        * SP 800-90A, 10.2.1.2  The Update Function (CTR_DRBG_Update) --------------------------------------------------
+        *
+        *    1. temp = Null.
+        *    2. While (len (temp) < seedlen) do
+        *       2.1 If ctr_len < blocklen
+        *           ...
+        *           Else V = (V+1) mod 2^blocklen.
+        *       2.2 output_block = Block_Encrypt (Key, V).
+        *       2.3 temp = temp || output_block.
+        *    3. temp = leftmost (temp, seedlen).
+        *    4. temp = temp XOR provided_data.
+        *    5. Key = leftmost (temp, keylen).
+        *    6. V = rightmost (temp, blocklen).
+        * --------------------------------------------------------------------------------------------------------------
+        */
+        private void update(byte[] providedData)
+        {
+            int blocks = (mSeedLength + AriaCipher.BLOCK_SIZE - 1) / AriaCipher.BLOCK_SIZE;
+            byte[] temp = new byte[blocks * AriaCipher.BLOCK_SIZE];
+            for (int i = 0; i < blocks; i++)
+            {
+                increment(mV);
+                mKey.encryptBlock(mV, 0, temp, i * AriaCipher.BLOCK_SIZE);
+            }
+            if (providedData != null)
+            {
+                for (int i = 0; i < mSeedLength; i++)
+                    temp[i] ^= providedData[i];
+            }
+            mKey = new AriaCipher(temp, 0, mKeySize);
+            System.arraycopy(temp, mKeySize, mV, 0, AriaCipher.BLOCK_SIZE);
+            Arrays.fill(temp, (byte) 0);
+        }
+    }
+
+    /**
+     * V = (V + 1) mod 2^128, V is big-endian.
+     */
+    private static void increment(byte[] v)
+    {
+        for (int i = v.length - 1; i >= 0; i--)
+        {
+            if (++v[i] != 0)
+                break;
+        }
+    }
+
+    private static void writeLong(long value, byte[] array, int offset)
+    {
+        AriaCipher.intToBytes((int) (value >>> 32), array, offset);
+        AriaCipher.intToBytes((int) value, array, offset + 4);
+    }
+}
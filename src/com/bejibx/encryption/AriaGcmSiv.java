@@ -0,0 +1,538 @@
+package com.bejibx.encryption;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * ARIA-GCM-SIV, nonce misuse-resistant authenticated encryption built as described in RFC 8452 with ARIA in place of
+ * AES. Both ciphers have 16-byte blocks, so the construction carries over unchanged. Like RFC 8452, only 128-bit and
+ * 256-bit keys are supported.
+ *
+ * Encrypting the same message twice with the same key and nonce gives the same ciphertext, and reusing a nonce only
+ * reveals whether two messages are equal. That makes deterministic, deduplication-friendly ciphertext safe.
+ *
+ * Output of encryption is ciphertext followed by 16-byte tag. Batch methods derive per-message keys for the whole
+ * batch in one pass through the key-generating key and may spread messages across the common pool.
+ */
+public class AriaGcmSiv
+{
+    public static final int NONCE_SIZE = 12;
+
+    public static final int TAG_SIZE = 16;
+
+    /**
+     * Number of counter blocks CTR encrypts at once before XOR'ing keystream into the text.
+     */
+    private static final int CTR_BLOCKS = 16;
+
+    private final AriaCipher mKeyGeneratingKey;
+
+    /**
+     * Message-encryption key length, equals key-generating key length.
+     */
+    private final int mKeyLength;
+
+    /**
+     * Number of blocks encrypted with key-generating key to derive keys for one message.
+     */
+    private final int mDerivationBlocks;
+
+    public AriaGcmSiv(byte[] key)
+    {
+        if (key.length != 16 && key.length != 32)
+        {
+            throw new IllegalArgumentException("Illegal key length. Only 128 and 256 bit keys are valid.");
+        }
+        mKeyGeneratingKey = new AriaCipher(key);
+        mKeyLength = key.length;
+        mDerivationBlocks = 2 + mKeyLength / 8;
+    }
+
+    /**
+     * Encrypt and authenticate message.
+     *
+     * @param nonce     12-byte nonce.
+     * @param aad       additional authenticated data, may be empty.
+     * @param plainText text to encrypt.
+     * @return NEW array with ciphertext followed by tag.
+     */
+    public byte[] encrypt(byte[] nonce, byte[] aad, byte[] plainText)
+    {
+        return encrypt(new byte[][]{nonce}, new byte[][]{aad}, new byte[][]{plainText}, false)[0];
+    }
+
+    /**
+     * Verify and decrypt message produced by {@link #encrypt(byte[], byte[], byte[])}.
+     *
+     * @return NEW array with plaintext.
+     * @throws IllegalArgumentException if tag doesn't match.
+     */
+    public byte[] decrypt(byte[] nonce, byte[] aad, byte[] cipherText)
+    {
+        return decrypt(new byte[][]{nonce}, new byte[][]{aad}, new byte[][]{cipherText}, false)[0];
+    }
+
+    /**
+     * Encrypt message stored in a region of array into caller-owned buffer, writing ciphertext followed by tag, that is
+     * length + {@link #TAG_SIZE} bytes. Output may start at the same position as input.
+     */
+    public void encrypt(byte[] nonce, byte[] aad, byte[] in, int inOffset, int length, byte[] out, int outOffset)
+    {
+        checkBatch(new byte[][]{nonce}, new byte[][]{aad}, new byte[][]{in}, 0);
+        byte[] keys = deriveKeys(new byte[][]{nonce});
+        try
+        {
+            Context context = new Context(keys, 0, mKeyLength);
+            context.tag(nonce, aad, in, inOffset, length, out, outOffset + length);
+            context.ctr(out, outOffset + length, in, inOffset, length, out, outOffset);
+        }
+        finally
+        {
+            Arrays.fill(keys, (byte) 0);
+        }
+    }
+
+    /**
+     * Verify and decrypt message stored in a region of array into caller-owned buffer. Output may start at the same
+     * position as input.
+     *
+     * @param length length of ciphertext including tag.
+     * @return length of plaintext written.
+     * @throws IllegalArgumentException if tag doesn't match. Output region is wiped then.
+     */
+    public int decrypt(byte[] nonce, byte[] aad, byte[] in, int inOffset, int length, byte[] out, int outOffset)
+    {
+        if (length < TAG_SIZE)
+        {
+            throw new IllegalArgumentException("Ciphertext is shorter than tag.");
+        }
+        checkBatch(new byte[][]{nonce}, new byte[][]{aad}, new byte[][]{in}, 0);
+        int plainLength = length - TAG_SIZE;
+        byte[] keys = deriveKeys(new byte[][]{nonce});
+        byte[] expected = new byte[TAG_SIZE];
+        int diff = 0;
+        try
+        {
+            Context context = new Context(keys, 0, mKeyLength);
+            context.ctr(in, inOffset + plainLength, in, inOffset, plainLength, out, outOffset);
+            context.tag(nonce, aad, out, outOffset, plainLength, expected, 0);
+            for (int i = 0; i < TAG_SIZE; i++)
+                diff |= expected[i] ^ in[inOffset + plainLength + i];
+        }
+        finally
+        {
+            Arrays.fill(keys, (byte) 0);
+        }
+        if (diff != 0)
+        {
+            Arrays.fill(out, outOffset, outOffset + plainLength, (byte) 0);
+            throw new IllegalArgumentException("Authentication failed.");
+        }
+        return plainLength;
+    }
+
+    /**
+     * Encrypt batch of messages. Arrays are indexed by message.
+     *
+     * @param parallel whether to spread messages across the common pool.
+     */
+    public byte[][] encrypt(final byte[][] nonces, final byte[][] aads, final byte[][] plainTexts, boolean parallel)
+    {
+        checkBatch(nonces, aads, plainTexts, 0);
+        final byte[] keys = deriveKeys(nonces);
+        final byte[][] result = new byte[plainTexts.length][];
+        try
+        {
+            run(plainTexts.length, parallel, new IntConsumer()
+            {
+                @Override
+                public void accept(int m)
+                {
+                    byte[] plainText = plainTexts[m];
+                    byte[] out = new byte[plainText.length + TAG_SIZE];
+                    Context context = new Context(keys, m * mDerivationBlocks * 8, mKeyLength);
+                    context.tag(nonces[m], aads[m], plainText, 0, plainText.length, out, plainText.length);
+                    context.ctr(out, plainText.length, plainText, 0, plainText.length, out, 0);
+                    result[m] = out;
+                }
+            });
+        }
+        finally
+        {
+            Arrays.fill(keys, (byte) 0);
+        }
+        return result;
+    }
+
+    /**
+     * Decrypt batch of messages. Arrays are indexed by message.
+     *
+     * @param parallel whether to spread messages across the common pool.
+     * @throws IllegalArgumentException naming the first message whose tag doesn't match. No plaintext is returned then.
+     */
+    public byte[][] decrypt(final byte[][] nonces, final byte[][] aads, final byte[][] cipherTexts, boolean parallel)
+    {
+        checkBatch(nonces, aads, cipherTexts, TAG_SIZE);
+        final byte[] keys = deriveKeys(nonces);
+        final byte[][] result = new byte[cipherTexts.length][];
+        final boolean[] failed = new boolean[cipherTexts.length];
+        try
+        {
+            run(cipherTexts.length, parallel, new IntConsumer()
+            {
+                @Override
+                public void accept(int m)
+                {
+                    byte[] cipherText = cipherTexts[m];
+                    int length = cipherText.length - TAG_SIZE;
+                    byte[] out = new byte[length];
+                    byte[] expected = new byte[TAG_SIZE];
+                    Context context = new Context(keys, m * mDerivationBlocks * 8, mKeyLength);
+                    context.ctr(cipherText, length, cipherText, 0, length, out, 0);
+                    context.tag(nonces[m], aads[m], out, 0, length, expected, 0);
+                    int diff = 0;
+                    for (int i = 0; i < TAG_SIZE; i++)
+                        diff |= expected[i] ^ cipherText[length + i];
+                    failed[m] = diff != 0;
+                    result[m] = out;
+                }
+            });
+        }
+        finally
+        {
+            Arrays.fill(keys, (byte) 0);
+        }
+        for (int m = 0; m < failed.length; m++)
+        {
+            if (failed[m])
+            {
+                for (byte[] plainText : result)
+                    Arrays.fill(plainText, (byte) 0);
+                throw new IllegalArgumentException("Authentication failed for message #" + String.valueOf(m) + ".");
+            }
+        }
+        return result;
+    }
+
+    private static void checkBatch(byte[][] nonces, byte[][] aads, byte[][] texts, int minLength)
+    {
+        if (nonces.length != texts.length || aads.length != texts.length)
+        {
+            throw new IllegalArgumentException("Nonce, AAD and text arrays must have the same length.");
+        }
+        for (int m = 0; m < texts.length; m++)
+        {
+            if (nonces[m].length != NONCE_SIZE)
+            {
+                throw new IllegalArgumentException("Nonce must be " + String.valueOf(NONCE_SIZE) + " bytes long.");
+            }
+            if (texts[m].length < minLength)
+            {
+                throw new IllegalArgumentException("Ciphertext is shorter than tag.");
+            }
+        }
+    }
+
+    private static void run(int count, boolean parallel, IntConsumer action)
+    {
+        IntStream messages = IntStream.range(0, count);
+        (parallel ? messages.parallel() : messages).forEach(action);
+    }
+
+   /*
+    * RFC 8452, 4.  Encryption -----------------------------------------------------------------------------------------
+    *
+    *    func derive_keys(key_generating_key, nonce) {
+    *      message_authentication_key =
+    *          AES(key = key_generating_key,
+    *              block = little_endian_uint32(0) ++ nonce)[:8] ++
+    *          AES(key = key_generating_key,
+    *              block = little_endian_uint32(1) ++ nonce)[:8]
+    *      message_encryption_key =
+    *          AES(key = key_generating_key,
+    *              block = little_endian_uint32(2) ++ nonce)[:8] ++
+    *          AES(key = key_generating_key,
+    *              block = little_endian_uint32(3) ++ nonce)[:8]
+    *
+    *      if bytelen(key_generating_key) == 32 {
+    *        message_encryption_key ++=
+    *            AES(key = key_generating_key,
+    *                block = little_endian_uint32(4) ++ nonce)[:8] ++
+    *            AES(key = key_generating_key,
+    *                block = little_endian_uint32(5) ++ nonce)[:8]
+    *      }
+    *
+    *      return message_authentication_key, message_encryption_key
+    *    }
+    * ------------------------------------------------------------------------------------------------------------------
+    */
+    /**
+     * Derive keys of all messages in one pass. Derivation blocks of the whole batch are laid out back to back and
+     * encrypted in place, then the leading half of every block is packed down.
+     *
+     * @return buffer with message-authentication key followed by message-encryption key for every message, at
+     * offset m * mDerivationBlocks * 8. Caller must wipe it.
+     */
+    private byte[] deriveKeys(byte[][] nonces)
+    {
+        int blocks = nonces.length * mDerivationBlocks;
+        byte[] buffer = new byte[blocks * AriaCipher.BLOCK_SIZE];
+        for (int m = 0; m < nonces.length; m++)
+        {
+            for (int i = 0; i < mDerivationBlocks; i++)
+            {
+                int offset = (m * mDerivationBlocks + i) * AriaCipher.BLOCK_SIZE;
+                buffer[offset] = (byte) i;
+                System.arraycopy(nonces[m], 0, buffer, offset + 4, NONCE_SIZE);
+            }
+        }
+        for (int offset = 0; offset < buffer.length; offset += AriaCipher.BLOCK_SIZE)
+            mKeyGeneratingKey.encryptBlock(buffer, offset, buffer, offset);
+        for (int b = 0; b < blocks; b++)
+            System.arraycopy(buffer, b * AriaCipher.BLOCK_SIZE, buffer, b * 8, 8);
+        Arrays.fill(buffer, blocks * 8, buffer.length, (byte) 0);
+        return buffer;
+    }
+
+    /**
+     * Per-message state: scheduled message-encryption key, POLYVAL keyed with message-authentication key and scratch
+     * buffers.
+     */
+    private static final class Context
+    {
+        private final AriaCipher mEncryptionKey;
+        private final Polyval mPolyval;
+        private final byte[] mBlock = new byte[AriaCipher.BLOCK_SIZE];
+
+        Context(byte[] keys, int offset, int keyLength)
+        {
+            mPolyval = new Polyval(keys, offset);
+            mEncryptionKey = new AriaCipher(keys, offset + 16, keyLength);
+        }
+
+       /*
+        * RFC 8452, 4.  Encryption -------------------------------------------------------------------------------------
+        *
+        *    S_s = POLYVAL(key = message_authentication_key,
+        *                  input = padded_ad ++ padded_plaintext ++
+        *                          length_block)
+        *    for i = 0; i < 12; i++ {
+        *      S_s[i] ^= nonce[i]
+        *    }
+        *    S_s[15] &= 0x7f
+        *    tag = AES(key = message_encryption_key, block = S_s)
+        * --------------------------------------------------------------------------------------------------------------
+        */
+        void tag(byte[] nonce, byte[] aad, byte[] plainText, int offset, int length, byte[] out, int outOffset)
+        {
+            mPolyval.update(aad, 0, aad.length);
+            mPolyval.update(plainText, offset, length);
+            writeLong((long) aad.length * 8, mBlock, 0);
+            writeLong((long) length * 8, mBlock, 8);
+            mPolyval.update(mBlock, 0, AriaCipher.BLOCK_SIZE);
+            mPolyval.digest(out, outOffset);
+            for (int i = 0; i < NONCE_SIZE; i++)
+                out[outOffset + i] ^= nonce[i];
+            out[outOffset + 15] &= 0x7f;
+            mEncryptionKey.encryptBlock(out, outOffset, out, outOffset);
+        }
+
+       /*
+        * RFC 8452, 4.  Encryption -------------------------------------------------------------------------------------
+        *
+        *    func AES_CTR(key, initial_counter_block, in) {
+        *      block = initial_counter_block
+        *
+        *      output = ""
+        *      while bytelen(in) > 0 {
+        *        keystream_block = AES(key = key, block = block)
+        *        block[0:4] = little_endian_uint32(
+        *            read_little_endian_uint32(block[0:4]) + 1)
+        *
+        *        todo = min(bytelen(in), bytelen(keystream_block)
+        *        for j = 0; j < todo; j++ {
+        *          output = append(output, keystream_block[j] ^ in[j])
+        *        }
+        *
+        *        in = in[todo:]
+        *      }
+        *
+        *      return output
+        *    }
+        *
+        *    counter_block = tag
+        *    counter_block[15] |= 0x80
+        *    return AES_CTR(key = message_encryption_key,
+        *                   initial_counter_block = counter_block,
+        *                   in = plaintext) ++
+        *           tag
+        * --------------------------------------------------------------------------------------------------------------
+        */
+        void ctr(byte[] tag, int tagOffset, byte[] in, int inOffset, int length, byte[] out, int outOffset)
+        {
+            byte[] keystream = new byte[CTR_BLOCKS * AriaCipher.BLOCK_SIZE];
+            int counter = readInt(tag, tagOffset);
+            for (int pos = 0; pos < length; pos += keystream.length)
+            {
+                int chunk = Math.min(keystream.length, length - pos);
+                for (int offset = 0; offset < chunk; offset += AriaCipher.BLOCK_SIZE)
+                {
+                    writeInt(counter++, keystream, offset);
+                    System.arraycopy(tag, tagOffset + 4, keystream, offset + 4, 12);
+                    keystream[offset + 15] |= (byte) 0x80;
+                    mEncryptionKey.encryptBlock(keystream, offset, keystream, offset);
+                }
+                for (int i = 0; i < chunk; i++)
+                    out[outOffset + pos + i] = (byte) (in[inOffset + pos + i] ^ keystream[i]);
+            }
+            Arrays.fill(keystream, (byte) 0);
+        }
+    }
+
+   /*
+    * RFC 8452, 3.  POLYVAL --------------------------------------------------------------------------------------------
+    *
+    *    POLYVAL takes a field element, H, and a series of field elements
+    *    X_1, ..., X_s.  Its result is S_s, where S is defined by the
+    *    iteration S_0 = 0; S_j = dot(S_{j-1} + X_j, H), for j = 1..s.
+    *
+    * Appendix A.  The Relationship between POLYVAL and GHASH
+    *
+    *    POLYVAL(H, X_1, ..., X_n) =
+    *    ByteReverse(GHASH(mulX_GHASH(ByteReverse(H)), ByteReverse(X_1), ...,
+    *    ByteReverse(X_n)))
+    * ------------------------------------------------------------------------------------------------------------------
+    */
+    /**
+     * Table-driven POLYVAL. Uses the GHASH mapping above: the state is kept byte-reversed as GHASH field element in two
+     * longs, and multiplication by H walks the element 4 bits at a time through a 16-entry table of multiples of H
+     * (Shoup's method) with a constant table folding the shifted-out bits back in.
+     */
+    private static final class Polyval
+    {
+        private static final long[] REDUCE = {
+                0x0000L << 48, 0x1c20L << 48, 0x3840L << 48, 0x2460L << 48,
+                0x7080L << 48, 0x6ca0L << 48, 0x48c0L << 48, 0x54e0L << 48,
+                0xe100L << 48, 0xfd20L << 48, 0xd940L << 48, 0xc560L << 48,
+                0x9180L << 48, 0x8da0L << 48, 0xa9c0L << 48, 0xb5e0L << 48
+        };
+
+        private final long[] mTableHi = new long[16];
+        private final long[] mTableLo = new long[16];
+        private long mHi;
+        private long mLo;
+
+        Polyval(byte[] key, int offset)
+        {
+            //H' = mulX_GHASH(ByteReverse(H)) goes to entry 8, the rest are its multiples by x, x^2, x^3 and their sums
+            long hi = readLong(key, offset + 8);
+            long lo = readLong(key, offset);
+            for (int i = 8; i > 0; i >>= 1)
+            {
+                long carry = lo & 1;
+                lo = (lo >>> 1) | (hi << 63);
+                hi = (hi >>> 1) ^ (0xe100000000000000L & -carry);
+                mTableHi[i] = hi;
+                mTableLo[i] = lo;
+            }
+            for (int i = 2; i < 16; i <<= 1)
+            {
+                for (int j = 1; j < i; j++)
+                {
+                    mTableHi[i + j] = mTableHi[i] ^ mTableHi[j];
+                    mTableLo[i + j] = mTableLo[i] ^ mTableLo[j];
+                }
+            }
+        }
+
+        /**
+         * Absorb data, zero-padding the last partial block.
+         */
+        void update(byte[] in, int offset, int length)
+        {
+            int end = offset + length;
+            int full = end - length % AriaCipher.BLOCK_SIZE;
+            for (; offset < full; offset += AriaCipher.BLOCK_SIZE)
+            {
+                mHi ^= readLong(in, offset + 8);
+                mLo ^= readLong(in, offset);
+                multiply();
+            }
+            if (offset < end)
+            {
+                byte[] block = new byte[AriaCipher.BLOCK_SIZE];
+                System.arraycopy(in, offset, block, 0, end - offset);
+                mHi ^= readLong(block, 8);
+                mLo ^= readLong(block, 0);
+                multiply();
+            }
+        }
+
+        void digest(byte[] out, int offset)
+        {
+            writeLong(mLo, out, offset);
+            writeLong(mHi, out, offset + 8);
+        }
+
+        private void multiply()
+        {
+            long xHi = mHi;
+            long xLo = mLo;
+            long zHi = 0;
+            long zLo = 0;
+            for (int i = 15; i >= 0; i--)
+            {
+                int b = (int) (((i < 8) ? xHi : xLo) >>> (56 - 8 * (i & 7))) & 0xff;
+                int rem = (int) zLo & 0xf;
+                zLo = (zHi << 60) | (zLo >>> 4);
+                zHi = (zHi >>> 4) ^ REDUCE[rem];
+                zHi ^= mTableHi[b & 0xf];
+                zLo ^= mTableLo[b & 0xf];
+                rem = (int) zLo & 0xf;
+                zLo = (zHi << 60) | (zLo >>> 4);
+                zHi = (zHi >>> 4) ^ REDUCE[rem];
+                zHi ^= mTableHi[b >>> 4];
+                zLo ^= mTableLo[b >>> 4];
+            }
+            mHi = zHi;
+            mLo = zLo;
+        }
+    }
+
+    /**
+     * Read little-endian 64-bit value.
+     */
+    private static long readLong(byte[] array, int offset)
+    {
+        long value = 0;
+        for (int i = 7; i >= 0; i--)
+            value = (value << 8) | AriaCipher.unsigned(array[offset + i]);
+        return value;
+    }
+
+    /**
+     * Write 64-bit value in little-endian order.
+     */
+    private static void writeLong(long value, byte[] array, int offset)
+    {
+        for (int i = 0; i < 8; i++)
+            array[offset + i] = (byte) (value >>> (8 * i));
+    }
+
+    /**
+     * Read little-endian 32-bit value.
+     */
+    private static int readInt(byte[] array, int offset)
+    {
+        return Integer.reverseBytes(AriaCipher.bytesToInt(array, offset));
+    }
+
+    /**
+     * Write 32-bit value in little-endian order.
+     */
+    private static void writeInt(int value, byte[] array, int offset)
+    {
+        AriaCipher.intToBytes(Integer.reverseBytes(value), array, offset);
+    }
+}
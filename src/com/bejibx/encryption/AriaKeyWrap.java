@@ -0,0 +1,379 @@
+package com.bejibx.encryption;
+
+import java.util.Arrays;
+
+/**
+ * ARIA key wrap (RFC 3394) and key wrap with padding (RFC 5649) on top of {@link AriaCipher} used as the key-encryption
+ * key.
+ *
+ * Besides single key operations there is a batch unwrap which is meant for loading lots of data keys at once. All
+ * wrapped keys are copied into one working buffer and unwrapped there in place, one chain after another. Unwrapped keys
+ * are scheduled straight out of the working buffer into {@link AriaCipher} instances and the buffer is wiped afterwards,
+ * no byte[] copy of any data key is handed out.
+ */
+public class AriaKeyWrap
+{
+    /**
+     * Size of semiblock, the unit key wrap works with.
+     */
+    private static final int SEMIBLOCK = 8;
+
+    /**
+     * Number of times every semiblock goes through the block cipher.
+     */
+    private static final int ROUNDS = 6;
+
+    /**
+     * Default initial value, RFC 3394 section 2.2.3.1.
+     */
+    private static final byte[] IV = {
+            (byte) 0xa6, (byte) 0xa6, (byte) 0xa6, (byte) 0xa6,
+            (byte) 0xa6, (byte) 0xa6, (byte) 0xa6, (byte) 0xa6
+    };
+
+    /**
+     * Constant part of alternative initial value, RFC 5649 section 3. The rest is the 32-bit message length indicator.
+     */
+    private static final int AIV = 0xa65959a6;
+
+    private final AriaCipher mKek;
+
+    public AriaKeyWrap(AriaCipher kek)
+    {
+        mKek = kek;
+    }
+
+   /*
+    * RFC 3394, 2.2.1.  Key Wrap ---------------------------------------------------------------------------------------
+    *
+    *    Inputs:  Plaintext, n 64-bit values {P1, P2, ..., Pn}, and
+    *             Key, K (the KEK).
+    *    Outputs: Ciphertext, (n+1) 64-bit values {C0, C1, ..., Cn}.
+    *
+    *    1) Initialize variables.
+    *
+    *        Set A = IV, an initial value (see 2.2.3)
+    *        For i = 1 to n
+    *            R[i] = P[i]
+    *
+    *    2) Calculate intermediate values.
+    *
+    *        For j = 0 to 5
+    *            For i=1 to n
+    *                B = AES(K, A | R[i])
+    *                A = MSB(64, B) ^ t where t = (n*j)+i
+    *                R[i] = LSB(64, B)
+    *
+    *    3) Output the results.
+    *
+    *        Set C[0] = A
+    *        For i = 1 to n
+    *            C[i] = R[i]
+    * ------------------------------------------------------------------------------------------------------------------
+    */
+    /**
+     * Wrap key with the default initial value.
+     *
+     * @param key key data, at least 16 bytes, length must be a multiple of 8.
+     * @return NEW array holding 8 bytes more than the key.
+     */
+    public byte[] wrap(byte[] key)
+    {
+        if (key.length < 2 * SEMIBLOCK || key.length % SEMIBLOCK != 0)
+        {
+            throw new IllegalArgumentException("Key length must be a multiple of 8 bytes and at least 16 bytes.");
+        }
+        byte[] result = new byte[key.length + SEMIBLOCK];
+        System.arraycopy(IV, 0, result, 0, SEMIBLOCK);
+        System.arraycopy(key, 0, result, SEMIBLOCK, key.length);
+        wrapBlocks(result);
+        return result;
+    }
+
+   /*
+    * RFC 5649, 4.1.  Extended Key Wrapping Process --------------------------------------------------------------------
+    *
+    *    Let m = the number of octets in the key data, and let n = ceil(m/8).
+    *    Pad the key data on the right with 8*n - m zeros.
+    *
+    *    1) If the padded plaintext contains exactly eight octets, then
+    *       prepend the AIV as defined in Section 3 above to P[1] and
+    *       encrypt the resulting 128-bit block using AES in ECB mode
+    *       [Modes] with key K (the KEK).  In this case, the output is two
+    *       64-bit blocks C[0] and C[1]:
+    *
+    *          C[0] | C[1] = ENC(K, A | P[1]).
+    *
+    *    2) Otherwise, apply the wrapping process specified in Section 2.2.1
+    *       of [AES-KW1] to the padded plaintext {P[1], ..., P[n]} with K
+    *       (the KEK) and the AIV as defined in Section 3 above as the
+    *       initial value.
+    * ------------------------------------------------------------------------------------------------------------------
+    */
+    /**
+     * Wrap key of any non-zero length using the alternative initial value and zero padding.
+     *
+     * @return NEW array holding the key padded to a multiple of 8 bytes plus 8 more bytes.
+     */
+    public byte[] wrapWithPadding(byte[] key)
+    {
+        if (key.length == 0)
+        {
+            throw new IllegalArgumentException("Key must not be empty.");
+        }
+        int paddedLength = (key.length + SEMIBLOCK - 1) / SEMIBLOCK * SEMIBLOCK;
+        byte[] result = new byte[paddedLength + SEMIBLOCK];
+        AriaCipher.intToBytes(AIV, result, 0);
+        AriaCipher.intToBytes(key.length, result, 4);
+        System.arraycopy(key, 0, result, SEMIBLOCK, key.length);
+        if (paddedLength == SEMIBLOCK)
+            mKek.encryptBlock(result, 0, result, 0);
+        else
+            wrapBlocks(result);
+        return result;
+    }
+
+    /**
+     * Run wrapping process over A | R[1] | ... | R[n] laid out in buffer, in place.
+     */
+    private void wrapBlocks(byte[] buffer)
+    {
+        int n = buffer.length / SEMIBLOCK - 1;
+        byte[] block = new byte[AriaCipher.BLOCK_SIZE];
+        for (int j = 0; j < ROUNDS; j++)
+        {
+            for (int i = 1; i <= n; i++)
+            {
+                System.arraycopy(buffer, 0, block, 0, SEMIBLOCK);
+                System.arraycopy(buffer, i * SEMIBLOCK, block, SEMIBLOCK, SEMIBLOCK);
+                mKek.encryptBlock(block, 0, block, 0);
+                xorCounter(block, 0, (long) n * j + i);
+                System.arraycopy(block, 0, buffer, 0, SEMIBLOCK);
+                System.arraycopy(block, SEMIBLOCK, buffer, i * SEMIBLOCK, SEMIBLOCK);
+            }
+        }
+        Arrays.fill(block, (byte) 0);
+    }
+
+   /*
+    * RFC 3394, 2.2.2.  Key Unwrap -------------------------------------------------------------------------------------
+    *
+    *    1) Initialize variables.
+    *
+    *        Set A = C[0]
+    *        For i = 1 to n
+    *            R[i] = C[i]
+    *
+    *    2) Compute intermediate values.
+    *
+    *        For j = 5 to 0
+    *            For i = n to 1
+    *                B = AES-1(K, (A ^ t) | R[i]) where t = n*j+i
+    *                A = MSB(64, B)
+    *                R[i] = LSB(64, B)
+    *
+    *    3) Output results.
+    *
+    *    If A is an appropriate initial value (see 2.2.3),
+    *    Then
+    *        For i = 1 to n
+    *            P[i] = R[i]
+    *    Else
+    *        Return an error
+    * ------------------------------------------------------------------------------------------------------------------
+    */
+    /**
+     * Unwrap key wrapped with {@link #wrap(byte[])}.
+     *
+     * @return NEW array with key data.
+     */
+    public byte[] unwrap(byte[] wrapped)
+    {
+        return unwrapToBytes(wrapped, false);
+    }
+
+    /**
+     * Unwrap key wrapped with {@link #wrapWithPadding(byte[])}.
+     *
+     * @return NEW array with key data, padding removed.
+     */
+    public byte[] unwrapWithPadding(byte[] wrapped)
+    {
+        return unwrapToBytes(wrapped, true);
+    }
+
+    /**
+     * Unwrap batch of ARIA keys wrapped with {@link #wrap(byte[])} and schedule them.
+     *
+     * @return ready to use ciphers, in the same order as wrapped keys.
+     */
+    public AriaCipher[] unwrapCiphers(byte[][] wrapped)
+    {
+        return unwrapToCiphers(wrapped, false);
+    }
+
+    /**
+     * Unwrap batch of ARIA keys wrapped with {@link #wrapWithPadding(byte[])} and schedule them.
+     *
+     * @return ready to use ciphers, in the same order as wrapped keys.
+     */
+    public AriaCipher[] unwrapCiphersWithPadding(byte[][] wrapped)
+    {
+        return unwrapToCiphers(wrapped, true);
+    }
+
+    private byte[] unwrapToBytes(byte[] wrapped, boolean padded)
+    {
+        int[] offsets = new int[2];
+        int[] keyLengths = new int[1];
+        byte[] work = unwrapChains(new byte[][]{wrapped}, padded, false, offsets, keyLengths);
+        byte[] result = Arrays.copyOfRange(work, SEMIBLOCK, SEMIBLOCK + keyLengths[0]);
+        Arrays.fill(work, (byte) 0);
+        return result;
+    }
+
+    private AriaCipher[] unwrapToCiphers(byte[][] wrapped, boolean padded)
+    {
+        int[] offsets = new int[wrapped.length + 1];
+        int[] keyLengths = new int[wrapped.length];
+        byte[] work = unwrapChains(wrapped, padded, true, offsets, keyLengths);
+        try
+        {
+            AriaCipher[] result = new AriaCipher[wrapped.length];
+            for (int c = 0; c < wrapped.length; c++)
+                result[c] = new AriaCipher(work, offsets[c] + SEMIBLOCK, keyLengths[c]);
+            return result;
+        }
+        finally
+        {
+            Arrays.fill(work, (byte) 0);
+        }
+    }
+
+    /**
+     * Unwrap all chains. Every wrapped key is copied into one working buffer as C[0] | ... | C[n], which is exactly the
+     * A | R[1] | ... | R[n] layout the unwrapping process updates in place.
+     *
+     * @param cipherKeys whether keys are going to be scheduled into {@link AriaCipher}, so their length must be valid
+     *                   for ARIA.
+     * @param offsets    filled with chain offsets in the returned buffer, one extra entry for the buffer end.
+     * @param keyLengths filled with unpadded key length of every chain.
+     * @return working buffer with unwrapped chains. Caller must wipe it.
+     */
+    private byte[] unwrapChains(byte[][] wrapped, boolean padded, boolean cipherKeys, int[] offsets,
+            int[] keyLengths)
+    {
+        int nChains = wrapped.length;
+        for (int c = 0; c < nChains; c++)
+        {
+            int length = wrapped[c].length;
+            int minLength = padded ? 2 * SEMIBLOCK : 3 * SEMIBLOCK;
+            if (length < minLength || length % SEMIBLOCK != 0)
+            {
+                throw new IllegalArgumentException("Illegal length of wrapped key #" + String.valueOf(c) + ".");
+            }
+            offsets[c + 1] = offsets[c] + length;
+        }
+
+        byte[] work = new byte[offsets[nChains]];
+        for (int c = 0; c < nChains; c++)
+            System.arraycopy(wrapped[c], 0, work, offsets[c], wrapped[c].length);
+
+        byte[] block = new byte[AriaCipher.BLOCK_SIZE];
+        for (int c = 0; c < nChains; c++)
+        {
+            int offset = offsets[c];
+            int length = offsets[c + 1] - offset;
+            if (length == AriaCipher.BLOCK_SIZE)
+                //Single block wrapped with padding, plain block decryption
+                mKek.decryptBlock(work, offset, work, offset);
+            else
+                unwrapBlocks(work, offset, length, block);
+            keyLengths[c] = padded ? checkPadded(work, offset, length) : checkDefault(work, offset, length);
+            if (keyLengths[c] < 0)
+            {
+                Arrays.fill(work, (byte) 0);
+                Arrays.fill(block, (byte) 0);
+                throw new IllegalArgumentException("Integrity check failed for wrapped key #" + String.valueOf(c) +
+                        ".");
+            }
+            if (cipherKeys && keyLengths[c] != 16 && keyLengths[c] != 24 && keyLengths[c] != 32)
+            {
+                Arrays.fill(work, (byte) 0);
+                Arrays.fill(block, (byte) 0);
+                throw new IllegalArgumentException("Wrapped key #" + String.valueOf(c) + " is " +
+                        String.valueOf(keyLengths[c]) + " bytes long. Only 16, 24 and 32 byte keys are valid.");
+            }
+        }
+        Arrays.fill(block, (byte) 0);
+        return work;
+    }
+
+    /**
+     * Run unwrapping process over C[0] | C[1] | ... | C[n] laid out in buffer region, in place.
+     */
+    private void unwrapBlocks(byte[] buffer, int offset, int length, byte[] block)
+    {
+        int n = length / SEMIBLOCK - 1;
+        for (int j = ROUNDS - 1; j >= 0; j--)
+        {
+            for (int i = n; i >= 1; i--)
+            {
+                System.arraycopy(buffer, offset, block, 0, SEMIBLOCK);
+                xorCounter(block, 0, (long) n * j + i);
+                System.arraycopy(buffer, offset + i * SEMIBLOCK, block, SEMIBLOCK, SEMIBLOCK);
+                mKek.decryptBlock(block, 0, block, 0);
+                System.arraycopy(block, 0, buffer, offset, SEMIBLOCK);
+                System.arraycopy(block, SEMIBLOCK, buffer, offset + i * SEMIBLOCK, SEMIBLOCK);
+            }
+        }
+    }
+
+    /**
+     * Check A against the default initial value. Comparison takes the same time wherever the mismatch is.
+     *
+     * @return key length, or -1 when check failed.
+     */
+    private static int checkDefault(byte[] work, int offset, int length)
+    {
+        int diff = 0;
+        for (int i = 0; i < SEMIBLOCK; i++)
+            diff |= work[offset + i] ^ IV[i];
+        return (diff == 0) ? length - SEMIBLOCK : -1;
+    }
+
+   /*
+    * RFC 5649, 3.  Alternative Initial Value --------------------------------------------------------------------------
+    *
+    *    3) Let MLI = the rightmost 32 bits of A.  Check that 8*(n-1) < MLI
+    *       <= 8*n.  If so, let b = 8*n - MLI, and then check that the
+    *       rightmost b octets of the output data are zero.  If all checks
+    *       pass, then the output data is valid.
+    * ------------------------------------------------------------------------------------------------------------------
+    */
+    /**
+     * Check A against the alternative initial value and verify padding.
+     *
+     * @return key length, or -1 when check failed.
+     */
+    private static int checkPadded(byte[] work, int offset, int length)
+    {
+        int n = length / SEMIBLOCK - 1;
+        int diff = AriaCipher.bytesToInt(work, offset) ^ AIV;
+        int mli = AriaCipher.bytesToInt(work, offset + 4);
+        if (mli <= SEMIBLOCK * (n - 1) || mli > SEMIBLOCK * n)
+            return -1;
+        for (int i = SEMIBLOCK + mli; i < length; i++)
+            diff |= work[offset + i];
+        return (diff == 0) ? mli : -1;
+    }
+
+    /**
+     * XOR 64-bit big-endian counter t into semiblock starting at offset.
+     */
+    private static void xorCounter(byte[] block, int offset, long t)
+    {
+        for (int k = 0; k < SEMIBLOCK; k++)
+            block[offset + SEMIBLOCK - 1 - k] ^= (byte) (t >>> (8 * k));
+    }
+}
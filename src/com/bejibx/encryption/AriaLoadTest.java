@@ -0,0 +1,617 @@
+package com.bejibx.encryption;
+
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Sustained-throughput load generator for {@link AriaCipher}.
+ *
+ * Runs a number of worker threads (platform or virtual) for a fixed time. Every operation picks a message size from
+ * the configured distribution, encrypts and decrypts a message of that size, and with configured probability replaces
+ * the worker cipher by a freshly scheduled one. Latencies of encrypt, decrypt and rekey are recorded into per-thread
+ * histograms which are merged after the run. Results together with GC and allocation statistics are exported as JSON.
+ *
+ * By default workers run flat out, which measures service time only: a stall delays the next operations instead of
+ * showing up in their latency (coordinated omission). With a target rate every worker follows a fixed schedule and the
+ * "response" histogram records each operation from its intended start time, so stalls are charged to every operation
+ * that should have run during them.
+ *
+ * Allocation is measured process-wide from heap memory pool usage plus whatever garbage collections freed in between,
+ * which works the same for platform and virtual threads. The harness itself allocates next to nothing while measuring.
+ *
+ * Usage:
+ * <pre>
+ * java com.bejibx.encryption.AriaLoadTest [--threads=8] [--virtual] [--duration=30] [--warmup=5]
+ *         [--sizes=16:50,256:30,4096:20] [--rekey-rate=0.001] [--key-size=16] [--rate=100000] [--out=result.json]
+ * </pre>
+ * Sizes are "bytes:weight" pairs, every size must be a multiple of the block size. Rekey rate is the probability of
+ * rekeying per operation. Rate is the target number of operations per second over all threads, 0 runs unthrottled.
+ * Durations are in seconds. Without --out results are printed to standard output.
+ */
+public class AriaLoadTest
+{
+    private int mThreads = Runtime.getRuntime().availableProcessors();
+    private boolean mVirtual = false;
+    private int mDurationSeconds = 30;
+    private int mWarmupSeconds = 5;
+    private int[] mSizes = {16, 256, 4096};
+    private int[] mSizeWeights = {50, 30, 20};
+    private double mRekeyRate = 0.001;
+    private int mKeySize = 16;
+    private double mRate = 0;
+    private String mOut = null;
+
+    public static void main(String[] args) throws Exception
+    {
+        AriaLoadTest test = new AriaLoadTest();
+        test.parseArguments(args);
+        test.run();
+    }
+
+    private void parseArguments(String[] args)
+    {
+        for (String arg : args)
+        {
+            int eq = arg.indexOf('=');
+            String name = (eq < 0) ? arg : arg.substring(0, eq);
+            String value = (eq < 0) ? null : arg.substring(eq + 1);
+            if (name.equals("--threads"))
+                mThreads = Integer.parseInt(value);
+            else if (name.equals("--virtual"))
+                mVirtual = true;
+            else if (name.equals("--duration"))
+                mDurationSeconds = Integer.parseInt(value);
+            else if (name.equals("--warmup"))
+                mWarmupSeconds = Integer.parseInt(value);
+            else if (name.equals("--sizes"))
+                parseSizes(value);
+            else if (name.equals("--rekey-rate"))
+                mRekeyRate = Double.parseDouble(value);
+            else if (name.equals("--key-size"))
+                mKeySize = Integer.parseInt(value);
+            else if (name.equals("--rate"))
+                mRate = Double.parseDouble(value);
+            else if (name.equals("--out"))
+                mOut = value;
+            else
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+        }
+        if (mThreads <= 0 || mDurationSeconds <= 0 || mWarmupSeconds < 0)
+        {
+            throw new IllegalArgumentException("Thread count and duration must be positive, warmup must not be negative.");
+        }
+        if (mRekeyRate < 0 || mRekeyRate > 1)
+        {
+            throw new IllegalArgumentException("Rekey rate must be between 0 and 1.");
+        }
+        if (mRate < 0)
+        {
+            throw new IllegalArgumentException("Target rate must not be negative.");
+        }
+    }
+
+    private void parseSizes(String value)
+    {
+        String[] pairs = value.split(",");
+        mSizes = new int[pairs.length];
+        mSizeWeights = new int[pairs.length];
+        for (int i = 0; i < pairs.length; i++)
+        {
+            String[] pair = pairs[i].split(":");
+            mSizes[i] = Integer.parseInt(pair[0].trim());
+            mSizeWeights[i] = (pair.length > 1) ? Integer.parseInt(pair[1].trim()) : 1;
+            if (mSizes[i] <= 0 || mSizes[i] % AriaCipher.BLOCK_SIZE != 0 || mSizeWeights[i] <= 0)
+            {
+                throw new IllegalArgumentException("Message size must be a positive multiple of block size and weight " +
+                        "must be positive: " + pairs[i]);
+            }
+        }
+    }
+
+    private void run() throws Exception
+    {
+        List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        long[] gcCountBefore = new long[collectors.size()];
+        long[] gcTimeBefore = new long[collectors.size()];
+        AllocationMeter allocation = new AllocationMeter();
+
+        long start = System.nanoTime();
+        final long measureStart = start + mWarmupSeconds * 1000000000L;
+        final long end = measureStart + mDurationSeconds * 1000000000L;
+        //Every worker runs its share of the target rate, schedules are staggered so they don't fire all at once
+        final long interval = (mRate > 0) ? (long) (mThreads * 1e9 / mRate) : 0;
+
+        Histogram encrypt = new Histogram();
+        Histogram decrypt = new Histogram();
+        Histogram rekey = new Histogram();
+        Histogram response = new Histogram();
+        long bytes = 0;
+        long allocated;
+        ExecutorService executor = newExecutor();
+        try
+        {
+            List<Future<Worker>> futures = new ArrayList<Future<Worker>>();
+            for (int i = 0; i < mThreads; i++)
+                futures.add(executor.submit(new Worker(start + interval * i / mThreads, interval, measureStart, end)));
+
+            //Take GC and allocation baseline once warmup is over
+            long sleep = (measureStart - System.nanoTime()) / 1000000L;
+            if (sleep > 0)
+                Thread.sleep(sleep);
+            for (int i = 0; i < collectors.size(); i++)
+            {
+                gcCountBefore[i] = collectors.get(i).getCollectionCount();
+                gcTimeBefore[i] = collectors.get(i).getCollectionTime();
+            }
+            allocation.start();
+
+            for (Future<Worker> future : futures)
+            {
+                Worker worker = future.get();
+                encrypt.add(worker.mEncrypt);
+                decrypt.add(worker.mDecrypt);
+                rekey.add(worker.mRekey);
+                response.add(worker.mResponse);
+                bytes += worker.mBytes;
+            }
+            allocated = allocation.stop();
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+
+        Writer writer = (mOut == null) ? new OutputStreamWriter(System.out, StandardCharsets.UTF_8) :
+                new OutputStreamWriter(new FileOutputStream(mOut), StandardCharsets.UTF_8);
+        try
+        {
+            StringBuilder json = new StringBuilder();
+            json.append("{\n");
+            json.append("  \"config\": {\"threads\": ").append(mThreads)
+                    .append(", \"virtual\": ").append(mVirtual)
+                    .append(", \"durationSeconds\": ").append(mDurationSeconds)
+                    .append(", \"warmupSeconds\": ").append(mWarmupSeconds)
+                    .append(", \"keySize\": ").append(mKeySize)
+                    .append(", \"rekeyRate\": ").append(mRekeyRate)
+                    .append(", \"targetRate\": ").append(format(mRate))
+                    .append(", \"sizes\": [");
+            for (int i = 0; i < mSizes.length; i++)
+            {
+                json.append(i == 0 ? "" : ", ").append("{\"bytes\": ").append(mSizes[i])
+                        .append(", \"weight\": ").append(mSizeWeights[i]).append('}');
+            }
+            json.append("]},\n");
+            json.append("  \"java\": \"").append(System.getProperty("java.version")).append("\",\n");
+            json.append("  \"operations\": ").append(encrypt.count()).append(",\n");
+            json.append("  \"throughputOpsPerSecond\": ").append(format(encrypt.count() / (double) mDurationSeconds))
+                    .append(",\n");
+            json.append("  \"throughputMegabytesPerSecond\": ")
+                    .append(format(bytes / (double) mDurationSeconds / (1024 * 1024))).append(",\n");
+            json.append("  \"latencyNanos\": {\n");
+            json.append("    \"encrypt\": ");
+            encrypt.appendJson(json);
+            json.append(",\n    \"decrypt\": ");
+            decrypt.appendJson(json);
+            json.append(",\n    \"rekey\": ");
+            rekey.appendJson(json);
+            if (mRate > 0)
+            {
+                json.append(",\n    \"response\": ");
+                response.appendJson(json);
+            }
+            json.append("\n  },\n");
+            json.append("  \"allocatedBytes\": ").append(allocated).append(",\n");
+            json.append("  \"allocatedBytesApproximate\": ").append(allocation.isApproximate()).append(",\n");
+            json.append("  \"gc\": [");
+            for (int i = 0; i < collectors.size(); i++)
+            {
+                GarbageCollectorMXBean collector = collectors.get(i);
+                json.append(i == 0 ? "" : ", ").append("{\"name\": \"").append(collector.getName())
+                        .append("\", \"count\": ").append(collector.getCollectionCount() - gcCountBefore[i])
+                        .append(", \"timeMillis\": ").append(collector.getCollectionTime() - gcTimeBefore[i])
+                        .append('}');
+            }
+            json.append("]\n}\n");
+            writer.write(json.toString());
+        }
+        finally
+        {
+            writer.flush();
+            if (mOut != null)
+                writer.close();
+        }
+    }
+
+    /**
+     * Virtual threads are only available since Java 21, so the executor is looked up reflectively to keep the harness
+     * running on older releases.
+     */
+    private ExecutorService newExecutor()
+    {
+        if (!mVirtual)
+            return Executors.newFixedThreadPool(mThreads);
+        try
+        {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new IllegalStateException("Virtual threads require Java 21 or later.", e);
+        }
+    }
+
+    private static String format(double value)
+    {
+        return String.format(Locale.ROOT, "%.2f", value);
+    }
+
+    private static AriaCipher newCipher(int keySize)
+    {
+        byte[] key = new byte[keySize];
+        ThreadLocalRandom.current().nextBytes(key);
+        return new AriaCipher(key);
+    }
+
+    /**
+     * Single load thread. Records into its own histograms, so workers never contend with each other.
+     */
+    private final class Worker implements Callable<Worker>
+    {
+        private final long mFirstStart;
+        private final long mInterval;
+        private final long mMeasureStart;
+        private final long mEnd;
+        final Histogram mEncrypt = new Histogram();
+        final Histogram mDecrypt = new Histogram();
+        final Histogram mRekey = new Histogram();
+        final Histogram mResponse = new Histogram();
+        long mBytes;
+
+        /**
+         * @param firstStart intended start of the first operation.
+         * @param interval   time between intended starts of two operations, 0 to run unthrottled.
+         */
+        Worker(long firstStart, long interval, long measureStart, long end)
+        {
+            mFirstStart = firstStart;
+            mInterval = interval;
+            mMeasureStart = measureStart;
+            mEnd = end;
+        }
+
+        @Override
+        public Worker call()
+        {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            byte[][] messages = new byte[mSizes.length][];
+            int totalWeight = 0;
+            for (int i = 0; i < mSizes.length; i++)
+            {
+                messages[i] = new byte[mSizes[i]];
+                random.nextBytes(messages[i]);
+                totalWeight += mSizeWeights[i];
+            }
+            AriaCipher cipher = newCipher(mKeySize);
+            long intendedStart = mFirstStart;
+
+            while (true)
+            {
+                if (mInterval > 0)
+                {
+                    //Wait for the schedule, but never skip operations that are already late
+                    long wait;
+                    while ((wait = intendedStart - System.nanoTime()) > 0)
+                        LockSupport.parkNanos(wait);
+                }
+                long now = System.nanoTime();
+                if (now >= mEnd || intendedStart >= mEnd)
+                    break;
+                if (mInterval == 0)
+                    intendedStart = now;
+                boolean measuring = intendedStart >= mMeasureStart;
+
+                if (mRekeyRate > 0 && random.nextDouble() < mRekeyRate)
+                {
+                    long t = System.nanoTime();
+                    cipher = newCipher(mKeySize);
+                    if (measuring)
+                        mRekey.record(System.nanoTime() - t);
+                }
+
+                int pick = random.nextInt(totalWeight);
+                int index = 0;
+                while (pick >= mSizeWeights[index])
+                    pick -= mSizeWeights[index++];
+                byte[] message = messages[index];
+
+                long t0 = System.nanoTime();
+                byte[] cipherText = cipher.encrypt(message);
+                long t1 = System.nanoTime();
+                cipher.decrypt(cipherText);
+                long t2 = System.nanoTime();
+                if (measuring)
+                {
+                    mEncrypt.record(t1 - t0);
+                    mDecrypt.record(t2 - t1);
+                    if (mInterval > 0)
+                        mResponse.record(t2 - intendedStart);
+                    mBytes += message.length;
+                }
+                intendedStart += mInterval;
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Process-wide allocation counter. Allocated bytes are the growth of used heap between start and stop plus the heap
+     * freed by every garbage collection in between, taken from GC notifications.
+     *
+     * Notifications arrive asynchronously, possibly after the collection that sent them is long over, so they are
+     * matched by collection id against per-collector counts snapshotted together with heap usage: only collections
+     * between the two snapshots are counted, and stop waits for the stragglers. If some notifications never show up,
+     * or the JVM sends none at all, the result undercounts and is flagged as approximate.
+     */
+    private static final class AllocationMeter implements NotificationListener
+    {
+        private static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+
+        /**
+         * How long stop waits for notifications of collections that already ran.
+         */
+        private static final long NOTIFICATION_TIMEOUT_MILLIS = 5000;
+
+        private final List<GarbageCollectorMXBean> mCollectors = ManagementFactory.getGarbageCollectorMXBeans();
+        private final List<MemoryPoolMXBean> mHeapPools = new ArrayList<MemoryPoolMXBean>();
+        private final Set<String> mHeapPoolNames = new HashSet<String>();
+        private final long[] mCountsAtStart;
+        private long mUsedAtStart;
+
+        /**
+         * Collector index, collection id and freed heap bytes of every notification received. Written by the
+         * notification thread, hence guarded by this.
+         */
+        private final List<long[]> mCollections = new ArrayList<long[]>();
+
+        private boolean mApproximate;
+
+        AllocationMeter()
+        {
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            {
+                if (pool.getType() == MemoryType.HEAP)
+                {
+                    mHeapPools.add(pool);
+                    mHeapPoolNames.add(pool.getName());
+                }
+            }
+            mCountsAtStart = new long[mCollectors.size()];
+        }
+
+        void start()
+        {
+            for (int i = 0; i < mCollectors.size(); i++)
+            {
+                if (mCollectors.get(i) instanceof NotificationEmitter)
+                    ((NotificationEmitter) mCollectors.get(i)).addNotificationListener(this, null, i);
+                else
+                    mApproximate = true;
+            }
+            mUsedAtStart = snapshot(mCountsAtStart);
+        }
+
+        /**
+         * @return allocated bytes since start.
+         */
+        long stop() throws Exception
+        {
+            long[] countsAtStop = new long[mCollectors.size()];
+            long usedAtStop = snapshot(countsAtStop);
+            long expected = 0;
+            for (int i = 0; i < mCollectors.size(); i++)
+                expected += countsAtStop[i] - mCountsAtStart[i];
+
+            long deadline = System.nanoTime() + NOTIFICATION_TIMEOUT_MILLIS * 1000000L;
+            long freed;
+            while (true)
+            {
+                long received = 0;
+                freed = 0;
+                synchronized (this)
+                {
+                    for (long[] collection : mCollections)
+                    {
+                        int collector = (int) collection[0];
+                        if (collection[1] > mCountsAtStart[collector] && collection[1] <= countsAtStop[collector])
+                        {
+                            received++;
+                            freed += collection[2];
+                        }
+                    }
+                }
+                if (received >= expected)
+                    break;
+                if (System.nanoTime() >= deadline)
+                {
+                    mApproximate = true;
+                    break;
+                }
+                Thread.sleep(10);
+            }
+
+            for (GarbageCollectorMXBean collector : mCollectors)
+            {
+                if (collector instanceof NotificationEmitter)
+                    ((NotificationEmitter) collector).removeNotificationListener(this);
+            }
+            return usedAtStop - mUsedAtStart + freed;
+        }
+
+        boolean isApproximate()
+        {
+            return mApproximate;
+        }
+
+        /**
+         * Read used heap and collection count of every collector at one point in time: retry until no collection ran
+         * while reading.
+         *
+         * @return used heap bytes.
+         */
+        private long snapshot(long[] counts)
+        {
+            while (true)
+            {
+                for (int i = 0; i < mCollectors.size(); i++)
+                    counts[i] = mCollectors.get(i).getCollectionCount();
+                long used = 0;
+                for (MemoryPoolMXBean pool : mHeapPools)
+                    used += pool.getUsage().getUsed();
+                boolean stable = true;
+                for (int i = 0; i < mCollectors.size(); i++)
+                    stable &= counts[i] == mCollectors.get(i).getCollectionCount();
+                if (stable)
+                    return used;
+            }
+        }
+
+        @Override
+        public void handleNotification(Notification notification, Object handback)
+        {
+            if (!GC_NOTIFICATION.equals(notification.getType()))
+                return;
+            int collector = (Integer) handback;
+            com.sun.management.GcInfo info = com.sun.management.GarbageCollectionNotificationInfo
+                    .from((CompositeData) notification.getUserData()).getGcInfo();
+            Map<String, MemoryUsage> before = info.getMemoryUsageBeforeGc();
+            Map<String, MemoryUsage> after = info.getMemoryUsageAfterGc();
+            long freed = 0;
+            for (String pool : mHeapPoolNames)
+            {
+                if (before.containsKey(pool) && after.containsKey(pool))
+                    freed += before.get(pool).getUsed() - after.get(pool).getUsed();
+            }
+            //Collection id is the collector's collection count after it, stop matches it against the snapshots
+            synchronized (this)
+            {
+                mCollections.add(new long[]{collector, info.getId(), freed});
+            }
+        }
+    }
+
+    /**
+     * Log-linear latency histogram in the spirit of HdrHistogram. Values below 128 get an exact bucket, above that every
+     * power of two is split into 64 linear sub-buckets, which keeps relative error under 1.6% for any value while the
+     * whole long range fits into a few thousand counters.
+     */
+    static final class Histogram
+    {
+        private static final int SUB_BUCKET_BITS = 6;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int SIZE = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS + SUB_BUCKETS;
+
+        private final long[] mCounts = new long[SIZE];
+        private long mCount;
+        private long mSum;
+        private long mMin = Long.MAX_VALUE;
+        private long mMax;
+
+        void record(long value)
+        {
+            if (value < 0)
+                value = 0;
+            mCounts[index(value)]++;
+            mCount++;
+            mSum += value;
+            mMin = Math.min(mMin, value);
+            mMax = Math.max(mMax, value);
+        }
+
+        void add(Histogram other)
+        {
+            for (int i = 0; i < SIZE; i++)
+                mCounts[i] += other.mCounts[i];
+            mCount += other.mCount;
+            mSum += other.mSum;
+            mMin = Math.min(mMin, other.mMin);
+            mMax = Math.max(mMax, other.mMax);
+        }
+
+        long count()
+        {
+            return mCount;
+        }
+
+        private static int index(long value)
+        {
+            if (value < 2 * SUB_BUCKETS)
+                return (int) value;
+            int bucket = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            return (bucket << SUB_BUCKET_BITS) + (int) (value >>> bucket);
+        }
+
+        /**
+         * Middle of the value range covered by bucket.
+         */
+        private static long value(int index)
+        {
+            if (index < 2 * SUB_BUCKETS)
+                return index;
+            int bucket = (index >>> SUB_BUCKET_BITS) - 1;
+            long subBucket = index - ((long) bucket << SUB_BUCKET_BITS);
+            return (subBucket << bucket) + ((1L << bucket) >>> 1);
+        }
+
+        long percentile(double percentile)
+        {
+            if (mCount == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mCount));
+            long seen = 0;
+            for (int i = 0; i < SIZE; i++)
+            {
+                seen += mCounts[i];
+                if (seen >= rank)
+                    return Math.min(value(i), mMax);
+            }
+            return mMax;
+        }
+
+        void appendJson(StringBuilder json)
+        {
+            json.append("{\"count\": ").append(mCount)
+                    .append(", \"min\": ").append(mCount == 0 ? 0 : mMin)
+                    .append(", \"mean\": ").append(format(mCount == 0 ? 0 : mSum / (double) mCount))
+                    .append(", \"p50\": ").append(percentile(50))
+                    .append(", \"p90\": ").append(percentile(90))
+                    .append(", \"p99\": ").append(percentile(99))
+                    .append(", \"p99.9\": ").append(percentile(99.9))
+                    .append(", \"p99.99\": ").append(percentile(99.99))
+                    .append(", \"max\": ").append(mMax)
+                    .append('}');
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.bejibx.encryption;
+
+import java.security.Provider;
+import java.util.Collections;
+
+/**
+ * JCA provider for ARIA based services.
+ */
+public class AriaProvider extends Provider
+{
+    private static final long serialVersionUID = 1L;
+
+    public static final String NAME = "AriaCipher";
+
+    /**
+     * Algorithm name of {@link AriaCtrDrbg}.
+     */
+    public static final String CTR_DRBG = "ARIA-CTR-DRBG";
+
+    public AriaProvider()
+    {
+        super(NAME, "1.0", "ARIA CTR_DRBG random generator");
+        //ThreadSafe attribute tells SecureRandom not to synchronize calls into the generator
+        putService(new Service(this, "SecureRandom", CTR_DRBG, AriaCtrDrbg.class.getName(), null,
+                Collections.singletonMap("ThreadSafe", "true")));
+    }
+}
@@ -0,0 +1,463 @@
+package com.bejibx.encryption;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Single-pass re-encryption for key rotation. Data is cut into chunks of fixed plaintext size, and every chunk is
+ * decrypted with the source format and encrypted with the target format while it is still in cache, so there is no
+ * full-size plaintext copy and no second pass over memory. When both formats are ECB the two ciphers are fused per
+ * block: each block is decrypted with the old key and encrypted with the new one straight into the output.
+ *
+ * Formats may differ, e.g. ECB data can be moved to GCM-SIV while rotating keys. With GCM-SIV every chunk is a separate
+ * message whose nonce is derived from the chunk index, so chunks can be processed in any order and redoing a chunk
+ * gives the very same bytes. That is what makes checkpoint/resume of file re-encryption safe. Like in the STREAM
+ * construction, the last chunk is authenticated as last, so data cut at a chunk boundary fails to decrypt instead of
+ * silently coming out shorter.
+ *
+ * Chunks run in parallel on the given {@link ForkJoinPool}, or in the calling thread when no pool is given. Passing a
+ * small dedicated pool keeps rotation from competing with live traffic for all cores. Instances are thread safe, so
+ * several files can be processed concurrently with the same instance.
+ */
+public class AriaReencryptor
+{
+    /**
+     * Default plaintext chunk size. Small enough for a chunk and its plaintext to stay in L2 cache.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Amount of source data read and written by a single positional file operation.
+     */
+    private static final int WINDOW_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Receives progress of file re-encryption. Called after target data is forced to storage.
+     */
+    public interface Checkpoint
+    {
+        /**
+         * @param chunks number of leading chunks that are complete. Pass it as first chunk to resume.
+         */
+        void completed(long chunks) throws IOException;
+    }
+
+    /**
+     * Encryption format of stored data.
+     */
+    public abstract static class Format
+    {
+        Format()
+        {
+        }
+
+        /**
+         * Plain ECB as done by {@link AriaCipher#encrypt(byte[])}.
+         */
+        public static Format ecb(AriaCipher cipher)
+        {
+            return new Ecb(cipher);
+        }
+
+        /**
+         * GCM-SIV with one message per chunk. Nonce of a chunk is the 4-byte prefix followed by big-endian 64-bit
+         * chunk index, so use a distinct prefix per file to keep nonces unique. Associated data is a single byte, 1 for
+         * the last chunk and 0 for all others. Empty data is stored as one empty last chunk, that is a bare tag.
+         */
+        public static Format gcmSiv(AriaGcmSiv aead, byte[] noncePrefix)
+        {
+            return new GcmSiv(aead, noncePrefix);
+        }
+
+        /**
+         * @throws IllegalArgumentException if this format can't encrypt plaintext of this length.
+         */
+        abstract int cipherLength(int plainLength);
+
+        /**
+         * @throws IllegalArgumentException if no plaintext encrypts to this many bytes.
+         */
+        abstract int plainLength(int cipherLength);
+
+        /**
+         * @param last whether this is the last chunk of data.
+         */
+        abstract void encrypt(long chunk, boolean last, byte[] in, int inOffset, int length, byte[] out,
+                int outOffset);
+
+        /**
+         * @param length ciphertext length.
+         * @param last   whether this is the last chunk of data.
+         */
+        abstract void decrypt(long chunk, boolean last, byte[] in, int inOffset, int length, byte[] out,
+                int outOffset);
+    }
+
+    private static final class Ecb extends Format
+    {
+        private final AriaCipher mCipher;
+
+        Ecb(AriaCipher cipher)
+        {
+            mCipher = cipher;
+        }
+
+        @Override
+        int cipherLength(int plainLength)
+        {
+            checkAligned(plainLength);
+            return plainLength;
+        }
+
+        @Override
+        int plainLength(int cipherLength)
+        {
+            checkAligned(cipherLength);
+            return cipherLength;
+        }
+
+        private static void checkAligned(int length)
+        {
+            if (length % AriaCipher.BLOCK_SIZE != 0)
+            {
+                throw new IllegalArgumentException("Text length must be a multiple of block size. Block size is " +
+                        String.valueOf(AriaCipher.BLOCK_SIZE) + " bytes.");
+            }
+        }
+
+        @Override
+        void encrypt(long chunk, boolean last, byte[] in, int inOffset, int length, byte[] out, int outOffset)
+        {
+            for (int pos = 0; pos < length; pos += AriaCipher.BLOCK_SIZE)
+                mCipher.encryptBlock(in, inOffset + pos, out, outOffset + pos);
+        }
+
+        @Override
+        void decrypt(long chunk, boolean last, byte[] in, int inOffset, int length, byte[] out, int outOffset)
+        {
+            for (int pos = 0; pos < length; pos += AriaCipher.BLOCK_SIZE)
+                mCipher.decryptBlock(in, inOffset + pos, out, outOffset + pos);
+        }
+    }
+
+    private static final class GcmSiv extends Format
+    {
+        private static final byte[] INNER_AAD = {0};
+        private static final byte[] LAST_AAD = {1};
+
+        private final AriaGcmSiv mAead;
+        private final byte[] mNoncePrefix;
+
+        GcmSiv(AriaGcmSiv aead, byte[] noncePrefix)
+        {
+            if (noncePrefix.length != 4)
+            {
+                throw new IllegalArgumentException("Nonce prefix must be 4 bytes long.");
+            }
+            mAead = aead;
+            mNoncePrefix = noncePrefix.clone();
+        }
+
+        private byte[] nonce(long chunk)
+        {
+            byte[] nonce = new byte[AriaGcmSiv.NONCE_SIZE];
+            System.arraycopy(mNoncePrefix, 0, nonce, 0, 4);
+            AriaCipher.intToBytes((int) (chunk >>> 32), nonce, 4);
+            AriaCipher.intToBytes((int) chunk, nonce, 8);
+            return nonce;
+        }
+
+        @Override
+        int cipherLength(int plainLength)
+        {
+            return plainLength + AriaGcmSiv.TAG_SIZE;
+        }
+
+        @Override
+        int plainLength(int cipherLength)
+        {
+            if (cipherLength < AriaGcmSiv.TAG_SIZE)
+            {
+                throw new IllegalArgumentException("Ciphertext is shorter than tag.");
+            }
+            return cipherLength - AriaGcmSiv.TAG_SIZE;
+        }
+
+        @Override
+        void encrypt(long chunk, boolean last, byte[] in, int inOffset, int length, byte[] out, int outOffset)
+        {
+            mAead.encrypt(nonce(chunk), last ? LAST_AAD : INNER_AAD, in, inOffset, length, out, outOffset);
+        }
+
+        @Override
+        void decrypt(long chunk, boolean last, byte[] in, int inOffset, int length, byte[] out, int outOffset)
+        {
+            mAead.decrypt(nonce(chunk), last ? LAST_AAD : INNER_AAD, in, inOffset, length, out, outOffset);
+        }
+    }
+
+    private final Format mSource;
+    private final Format mTarget;
+    private final int mChunkSize;
+    private final int mSourceChunk;
+    private final int mTargetChunk;
+
+    /**
+     * Per-thread plaintext buffer of one chunk, used when ciphers can't be fused per block.
+     */
+    private final ThreadLocal<byte[]> mPlain = new ThreadLocal<byte[]>()
+    {
+        @Override
+        protected byte[] initialValue()
+        {
+            return new byte[mChunkSize];
+        }
+    };
+
+    public AriaReencryptor(Format source, Format target)
+    {
+        this(source, target, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize plaintext bytes per chunk, a multiple of block size. Must be the same value the data was chunked
+     *                  with when the source format works per chunk.
+     */
+    public AriaReencryptor(Format source, Format target, int chunkSize)
+    {
+        if (chunkSize <= 0 || chunkSize % AriaCipher.BLOCK_SIZE != 0)
+        {
+            throw new IllegalArgumentException("Chunk size must be a positive multiple of block size. Block size is " +
+                    String.valueOf(AriaCipher.BLOCK_SIZE) + " bytes.");
+        }
+        mSource = source;
+        mTarget = target;
+        mChunkSize = chunkSize;
+        mSourceChunk = source.cipherLength(chunkSize);
+        mTargetChunk = target.cipherLength(chunkSize);
+    }
+
+    /**
+     * Re-encrypt data held in memory.
+     *
+     * @param pool pool to run chunks on, or null to run in the calling thread.
+     * @return NEW array with data in target format.
+     */
+    public byte[] reencrypt(final byte[] source, ForkJoinPool pool)
+    {
+        final long total = source.length;
+        final int nChunks = (int) chunkCount(total);
+        final byte[] result = new byte[(int) targetLength(total)];
+        run(nChunks, pool, new IntConsumer()
+        {
+            @Override
+            public void accept(int chunk)
+            {
+                long offset = (long) chunk * mSourceChunk;
+                int length = (int) Math.min(mSourceChunk, total - offset);
+                reencryptChunk(chunk, chunk == nChunks - 1, source, (int) offset, length, result,
+                        chunk * mTargetChunk);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Re-encrypt file into another file. Target is created if missing and is not truncated before start, so an
+     * interrupted run can be resumed from the last checkpoint. Source length is validated before target is touched.
+     *
+     * @param fromChunk  first chunk to process, 0 for a fresh run or the last value passed to checkpoint to resume.
+     * @param checkpoint progress receiver, may be null.
+     * @param pool       pool to run chunks on, or null to run in the calling thread.
+     */
+    public void reencrypt(Path source, Path target, long fromChunk, Checkpoint checkpoint, ForkJoinPool pool)
+            throws IOException
+    {
+        //Chunks are written over the source region other chunks still have to be read from
+        if (Files.exists(target) && Files.isSameFile(source, target))
+        {
+            throw new IllegalArgumentException("Source and target must be different files.");
+        }
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ))
+        {
+            final long total = in.size();
+            final long nChunks = chunkCount(total);
+            long targetTotal = targetLength(total);
+            if (fromChunk < 0 || fromChunk > nChunks)
+            {
+                throw new IllegalArgumentException("First chunk is out of range. File has " + String.valueOf(nChunks) +
+                        " chunks.");
+            }
+            try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+            {
+                reencryptWindows(in, out, total, nChunks, targetTotal, fromChunk, checkpoint, pool);
+            }
+        }
+    }
+
+    /**
+     * Process chunks from first one on in windows: read a window of source, re-encrypt its chunks, write it out.
+     */
+    private void reencryptWindows(FileChannel in, FileChannel out, final long total, final long nChunks,
+            long targetTotal, long fromChunk, Checkpoint checkpoint, ForkJoinPool pool) throws IOException
+    {
+        int window = Math.max(1, WINDOW_SIZE / mSourceChunk);
+        final byte[] sourceBuffer = new byte[window * mSourceChunk];
+        final byte[] targetBuffer = new byte[window * mTargetChunk];
+
+        for (long first = fromChunk; first < nChunks; first += window)
+        {
+            final long firstChunk = first;
+            final long sourceStart = first * mSourceChunk;
+            int count = (int) Math.min(window, nChunks - first);
+            final int sourceBytes = (int) (Math.min(total, sourceStart + (long) count * mSourceChunk) - sourceStart);
+            readFully(in, sourceBuffer, sourceBytes, sourceStart);
+
+            run(count, pool, new IntConsumer()
+            {
+                @Override
+                public void accept(int i)
+                {
+                    int offset = i * mSourceChunk;
+                    int length = Math.min(mSourceChunk, sourceBytes - offset);
+                    long chunk = firstChunk + i;
+                    reencryptChunk(chunk, chunk == nChunks - 1, sourceBuffer, offset, length, targetBuffer,
+                            i * mTargetChunk);
+                }
+            });
+
+            long targetStart = first * mTargetChunk;
+            int targetBytes = (first + count == nChunks) ? (int) (targetTotal - targetStart) : count * mTargetChunk;
+            writeFully(out, targetBuffer, targetBytes, targetStart);
+            if (checkpoint != null)
+            {
+                out.force(false);
+                checkpoint.completed(first + count);
+            }
+        }
+        out.truncate(targetTotal);
+        out.force(false);
+        Arrays.fill(targetBuffer, (byte) 0);
+    }
+
+    private void reencryptChunk(long chunk, boolean last, byte[] in, int inOffset, int length, byte[] out,
+            int outOffset)
+    {
+        try
+        {
+            if (mSource instanceof Ecb && mTarget instanceof Ecb)
+            {
+                AriaCipher oldCipher = ((Ecb) mSource).mCipher;
+                AriaCipher newCipher = ((Ecb) mTarget).mCipher;
+                for (int pos = 0; pos < length; pos += AriaCipher.BLOCK_SIZE)
+                {
+                    oldCipher.decryptBlock(in, inOffset + pos, out, outOffset + pos);
+                    newCipher.encryptBlock(out, outOffset + pos, out, outOffset + pos);
+                }
+            }
+            else
+            {
+                byte[] plain = mPlain.get();
+                int plainLength = mSource.plainLength(length);
+                mSource.decrypt(chunk, last, in, inOffset, length, plain, 0);
+                mTarget.encrypt(chunk, last, plain, 0, plainLength, out, outOffset);
+                Arrays.fill(plain, 0, plainLength, (byte) 0);
+            }
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IllegalArgumentException("Chunk #" + String.valueOf(chunk) + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Number of chunks in source data of given length. There is always a last chunk, for empty data it is empty.
+     */
+    private long chunkCount(long sourceLength)
+    {
+        return Math.max(1, (sourceLength + mSourceChunk - 1) / mSourceChunk);
+    }
+
+    /**
+     * Length of data in target format. Validates the last chunk against both formats, so data that can't be converted
+     * is rejected before anything is written.
+     */
+    private long targetLength(long sourceLength)
+    {
+        long fullChunks = chunkCount(sourceLength) - 1;
+        int lastChunk = (int) (sourceLength - fullChunks * mSourceChunk);
+        try
+        {
+            return fullChunks * mTargetChunk + mTarget.cipherLength(mSource.plainLength(lastChunk));
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IllegalArgumentException("Chunk #" + String.valueOf(fullChunks) + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static void run(int count, ForkJoinPool pool, final IntConsumer action)
+    {
+        if (pool == null)
+        {
+            for (int i = 0; i < count; i++)
+                action.accept(i);
+            return;
+        }
+        final IntStream chunks = IntStream.range(0, count).parallel();
+        try
+        {
+            //Parallel stream started from inside the pool runs its tasks in that pool
+            pool.submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    chunks.forEach(action);
+                }
+            }).get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while re-encrypting.", e);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            //Fork/join rethrows exceptions from other threads as a copy wrapping the original, report the original
+            if (cause.getCause() != null && cause.getCause().getClass() == cause.getClass())
+                cause = cause.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private static void readFully(FileChannel channel, byte[] buffer, int length, long position) throws IOException
+    {
+        ByteBuffer target = ByteBuffer.wrap(buffer, 0, length);
+        while (target.hasRemaining())
+        {
+            if (channel.read(target, position + target.position()) < 0)
+                throw new EOFException("Source file shrank during re-encryption.");
+        }
+    }
+
+    private static void writeFully(FileChannel channel, byte[] buffer, int length, long position) throws IOException
+    {
+        ByteBuffer source = ByteBuffer.wrap(buffer, 0, length);
+        while (source.hasRemaining())
+            channel.write(source, position + source.position());
+    }
+}
@@ -0,0 +1,472 @@
+package com.bejibx.encryption;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Known-answer checks for the block engine and the modes built on it, plus consistency checks for the batch helpers
+ * that have no vectors of their own. Run it after touching any of them; it prints every check and exits with status 1
+ * if any of them fails.
+ */
+public class KnownAnswerTest
+{
+    private static int sFailures = 0;
+
+    public static void main(String[] args) throws IOException
+    {
+        testBlockCipher();
+        testColumnCipher();
+        testKeyWrap();
+        testGcmSiv();
+        testCtrDrbg();
+        testReencryptor();
+        if (sFailures > 0)
+        {
+            System.out.println(String.valueOf(sFailures) + " known-answer check(s) FAILED.");
+            System.exit(1);
+        }
+        System.out.println("All known-answer checks passed.");
+    }
+
+   /*
+    * RFC 5794, Appendix A.  Example Data of ARIA ----------------------------------------------------------------------
+    * ------------------------------------------------------------------------------------------------------------------
+    */
+    private static void testBlockCipher()
+    {
+        String plainText = "00112233445566778899aabbccddeeff";
+        checkBlock("RFC 5794 A.1 128-bit key", "000102030405060708090a0b0c0d0e0f", plainText,
+                "d718fbd6ab644c739da95f3be6451778");
+        checkBlock("RFC 5794 A.2 192-bit key", "000102030405060708090a0b0c0d0e0f1011121314151617", plainText,
+                "26449c1805dbe7aa25a468ce263a9e79");
+        checkBlock("RFC 5794 A.3 256-bit key", "000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f",
+                plainText, "f92bd7c79fb72e2f2b8f80c1972d24fc");
+    }
+
+    private static void checkBlock(String name, String key, String plainText, String cipherText)
+    {
+        AriaCipher cipher = new AriaCipher(hex(key));
+        byte[] encrypted = cipher.encrypt(hex(plainText));
+        check(name + " encrypt", encrypted, hex(cipherText));
+        check(name + " decrypt", cipher.decrypt(encrypted), hex(plainText));
+    }
+
+   /*
+    * Column cipher processes every value like AriaCipher.encrypt would, so a column fully covered by its values must
+    * come out equal to ECB over the whole buffer. Columns are a few times larger than the split threshold, so the
+    * parallel path really splits rows.
+    */
+    private static void testColumnCipher()
+    {
+        AriaCipher cipher = new AriaCipher(hex("000102030405060708090a0b0c0d0e0f"));
+        AriaColumnCipher columns = new AriaColumnCipher(cipher);
+        Random random = new Random(5794);
+
+        int valueLength = 48;
+        byte[] fixed = new byte[valueLength * 20000];
+        random.nextBytes(fixed);
+        byte[] expected = cipher.encrypt(fixed);
+        check("Column fixed-width sequential", columns.encryptFixedWidth(fixed, valueLength, false), expected);
+        check("Column fixed-width parallel", columns.encryptFixedWidth(fixed, valueLength, true), expected);
+        check("Column fixed-width decrypt", columns.decryptFixedWidth(expected, valueLength, true), fixed);
+
+        //Variable lengths of 1 to 7 blocks, with an empty value now and then
+        int[] offsets = new int[30001];
+        for (int i = 1; i < offsets.length; i++)
+            offsets[i] = offsets[i - 1] + AriaCipher.BLOCK_SIZE * ((i % 11 == 0) ? 0 : 1 + i % 7);
+        byte[] variable = new byte[offsets[offsets.length - 1]];
+        random.nextBytes(variable);
+        expected = cipher.encrypt(variable);
+        check("Column offsets sequential", columns.encrypt(variable, offsets, false), expected);
+        check("Column offsets parallel", columns.encrypt(variable, offsets, true), expected);
+        check("Column offsets decrypt", columns.decrypt(expected, offsets, true), variable);
+
+        byte[] inPlace = variable.clone();
+        columns.encrypt(inPlace, offsets, inPlace, true);
+        check("Column offsets in place", inPlace, expected);
+    }
+
+   /*
+    * Key wrap vectors use the RFC 3394 section 4 and RFC 5649 section 6 inputs with ARIA in place of AES. Expected
+    * values were produced with an independent implementation (BouncyCastle RFC3394WrapEngine and RFC5649WrapEngine
+    * over ARIAEngine).
+    */
+    private static void testKeyWrap()
+    {
+        String kek128 = "000102030405060708090a0b0c0d0e0f";
+        String kek192 = "000102030405060708090a0b0c0d0e0f1011121314151617";
+        String kek256 = "000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f";
+        String[] keys = {
+                "00112233445566778899aabbccddeeff",
+                "00112233445566778899aabbccddeeff0001020304050607",
+                "00112233445566778899aabbccddeeff000102030405060708090a0b0c0d0e0f"
+        };
+        String[] wrapped = {
+                "a93f148d4909d85f1aae656909879275ae597b3acf9d60db",
+                "d3de092cdae2c71e85aa964924dce3c96736bd22cad51f75823102bbb305d230",
+                "9e98aad469e60840c258f8396aa05f826f7353bdd1257f909c5576967b0f8c7bcd9fe4157bf4d844"
+        };
+        checkWrap("KW 128-bit KEK, 128-bit key", kek128, keys[0], wrapped[0], false);
+        checkWrap("KW 192-bit KEK, 192-bit key", kek192, keys[1], wrapped[1], false);
+        checkWrap("KW 256-bit KEK, 256-bit key", kek256, keys[2], wrapped[2], false);
+
+        String kek = "5840df6e29b02af1ab493b705bf16ea1ae8338f4dcc176a8";
+        checkWrap("KWP 20-byte key", kek, "c37b7e6492584340bed12207808941155068f738",
+                "f8e2e399e9f9f5679651a57413ec81067acd1e72521d96cd794a83c44865f38d", true);
+        checkWrap("KWP 7-byte key", kek, "466f7250617369", "00f9275300eef901042937b4ce3f5beb", true);
+
+        //Batch unwrap must schedule the same keys as the single key path
+        AriaKeyWrap batchWrap = new AriaKeyWrap(new AriaCipher(hex(kek256)));
+        byte[][] batch = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++)
+            batch[i] = batchWrap.wrap(hex(keys[i]));
+        AriaCipher[] ciphers = batchWrap.unwrapCiphers(batch);
+        byte[] block = hex("00112233445566778899aabbccddeeff");
+        for (int i = 0; i < keys.length; i++)
+            check("KW batch unwrap #" + String.valueOf(i), ciphers[i].encrypt(block),
+                    new AriaCipher(hex(keys[i])).encrypt(block));
+
+        byte[] tampered = hex(wrapped[0]);
+        tampered[tampered.length - 1] ^= 1;
+        checkRejected("KW tampered input", new AriaKeyWrap(new AriaCipher(hex(kek128))), tampered, false);
+
+        //Key that passes the integrity check but is no valid ARIA key must be reported with its index
+        AriaKeyWrap padWrap = new AriaKeyWrap(new AriaCipher(hex(kek)));
+        byte[][] mixed = {padWrap.wrapWithPadding(hex(keys[0])), padWrap.wrapWithPadding(new byte[20])};
+        String message = null;
+        try
+        {
+            padWrap.unwrapCiphersWithPadding(mixed);
+        }
+        catch (IllegalArgumentException e)
+        {
+            message = e.getMessage();
+        }
+        boolean reported = message != null && message.contains("#1");
+        if (!reported)
+            sFailures++;
+        System.out.println((reported ? "PASS " : "FAIL ") + "KWP batch unwrap of 20-byte key rejected as #1");
+    }
+
+    private static void checkWrap(String name, String kek, String key, String wrapped, boolean padded)
+    {
+        AriaKeyWrap wrap = new AriaKeyWrap(new AriaCipher(hex(kek)));
+        byte[] result = padded ? wrap.wrapWithPadding(hex(key)) : wrap.wrap(hex(key));
+        check(name + " wrap", result, hex(wrapped));
+        check(name + " unwrap", padded ? wrap.unwrapWithPadding(result) : wrap.unwrap(result), hex(key));
+    }
+
+    private static void checkRejected(String name, AriaKeyWrap wrap, byte[] wrapped, boolean padded)
+    {
+        boolean rejected = false;
+        try
+        {
+            if (padded)
+                wrap.unwrapWithPadding(wrapped);
+            else
+                wrap.unwrap(wrapped);
+        }
+        catch (IllegalArgumentException e)
+        {
+            rejected = true;
+        }
+        if (!rejected)
+            sFailures++;
+        System.out.println((rejected ? "PASS " : "FAIL ") + name + " rejected");
+    }
+
+   /*
+    * GCM-SIV vectors use RFC 8452 Appendix C.1 and C.2 style inputs with ARIA in place of AES, plus one message long
+    * enough to cross several CTR batches. Expected values were produced with an independent implementation
+    * (BouncyCastle GCMSIVBlockCipher over ARIAEngine).
+    */
+    private static void testGcmSiv()
+    {
+        String key128 = "01000000000000000000000000000000";
+        String key256 = "0100000000000000000000000000000000000000000000000000000000000000";
+        String nonce = "030000000000000000000000";
+        checkGcmSiv("GCM-SIV 128-bit key, empty message", key128, nonce, "", "", "8e97284cf5260b8054934d473f25d8ad");
+        checkGcmSiv("GCM-SIV 128-bit key, 8-byte message", key128, nonce, "", "0100000000000000",
+                "9819eba4881edf4bb44423a4f9c8f657df399531756730d9");
+        checkGcmSiv("GCM-SIV 128-bit key, 1-byte AAD", key128, nonce, "01", "0200000000000000",
+                "207b61f487d7a9b770acf5d346a946e45e93e227cc7e46d4");
+        checkGcmSiv("GCM-SIV 128-bit key, partial blocks", key128, nonce, "010000000000000000000000000000000200",
+                "0300000000000000000000000000000004000000",
+                "01cb1b30622461d21b12e9ea075efbb80816c3516852982ab6a1ceb34519d9cc6926b664");
+        checkGcmSiv("GCM-SIV 256-bit key, 8-byte message", key256, nonce, "", "0100000000000000",
+                "606a3dcbd10e0161234f4dc6a59bebf2064f9a8ff9294982");
+        checkGcmSiv("GCM-SIV 256-bit key, 4 blocks", key256, nonce, "01",
+                "020000000000000000000000000000000300000000000000000000000000000004000000000000000000000000000000" +
+                "05000000000000000000000000000000",
+                "098798d1f833b171e50522922b3be0d8818d180df6ea11d55428937c5c0f25bcf6bb95a792b964d2413cdd4f948e62f3" +
+                "b88fca902f00bf4c617df2074143c6adf0d56d9c67dfdb8de037b8449e9574eb");
+
+        StringBuilder longMessage = new StringBuilder();
+        for (int i = 0; i < 300; i++)
+            longMessage.append(String.format("%02x", i & 0xff));
+        checkGcmSiv("GCM-SIV 256-bit key, 300-byte message", key256, "0f0e0d0c0b0a090807060504", "aabbcc",
+                longMessage.toString(),
+                "b23a82b24e47e476e47728408730e6b54bf485c00b8bd54a2eb4940d6aaf29808208e3bea5aae3866578a982d8023cb7" +
+                "7c6365650febf4f526bf7952e42b5960937323dc77fbdc1b955e4d21687b8de19a129afa0722e603a95e2b0a19552764" +
+                "fc9cbb067c54380bb2cbb11d18fb031e480255664e55ac5146be4dedbb5cde730df063a192956a68e18e74f974f49ef0" +
+                "2ee0b26ae839004b7ec09db56644b236ad34b28bd955943bc6415fa4a8d41e76ff6bb271d3771f561b0f992a54037281" +
+                "f9e7cb483827d37c88d7591f0147caad4dbb45d6d5f9d91e3c0a526831eb52e8e92734cc7c350c36d1003ac39231d042" +
+                "ddd103ab99ccf3a6d9d70fa8d40468e81064366236300cde824739391eba97f8e6a931fc20015970f48f31a2efb4cde6" +
+                "2a823c899973d0ce2313fdd6a745c83bb7f5bceecf84dbb955e9ca52");
+
+        boolean rejected = false;
+        try
+        {
+            new AriaGcmSiv(new byte[24]);
+        }
+        catch (IllegalArgumentException e)
+        {
+            rejected = true;
+        }
+        if (!rejected)
+            sFailures++;
+        System.out.println((rejected ? "PASS " : "FAIL ") + "GCM-SIV 192-bit key rejected");
+    }
+
+    private static void checkGcmSiv(String name, String key, String nonce, String aad, String plainText,
+            String cipherText)
+    {
+        AriaGcmSiv siv = new AriaGcmSiv(hex(key));
+        byte[] result = siv.encrypt(hex(nonce), hex(aad), hex(plainText));
+        check(name + " encrypt", result, hex(cipherText));
+        check(name + " decrypt", siv.decrypt(hex(nonce), hex(aad), result), hex(plainText));
+        byte[][] batch = siv.encrypt(new byte[][]{hex(nonce), hex(nonce)}, new byte[][]{hex(aad), hex(aad)},
+                new byte[][]{hex(plainText), hex(plainText)}, true);
+        check(name + " batch encrypt", batch[1], hex(cipherText));
+    }
+
+   /*
+    * CTR_DRBG vectors follow the CAVP layout for SP 800-90A without derivation function: instantiate, optionally
+    * reseed, generate twice and compare the second output. Inputs are byte sequences counting up from a start value.
+    * Expected values were produced with an independent implementation of SP 800-90A 10.2.1 over the OpenSSL ARIA
+    * block cipher.
+    */
+    private static void testCtrDrbg()
+    {
+        //With the provider preferred over everything else, the default SecureRandom is AriaCtrDrbg itself. Its entropy
+        //source must not be.
+        Security.insertProviderAt(new AriaProvider(), 1);
+        boolean passed;
+        try
+        {
+            SecureRandom random = new SecureRandom();
+            random.nextBytes(new byte[64]);
+            random.generateSeed(16);
+            passed = random.getAlgorithm().equals(AriaProvider.CTR_DRBG);
+        }
+        catch (StackOverflowError e)
+        {
+            passed = false;
+        }
+        finally
+        {
+            Security.removeProvider(AriaProvider.NAME);
+        }
+        if (!passed)
+            sFailures++;
+        System.out.println((passed ? "PASS " : "FAIL ") + "CTR_DRBG as most preferred provider");
+
+        AriaCtrDrbg.State state = new AriaCtrDrbg.State(32, 1L << 20, counting(0x00, 48), null);
+        checkGenerate("CTR_DRBG ARIA-256", state, 64, 64,
+                "65bd5a1ddbb36d37bbc239fc51131cdbce883fc824e5d892b2a04fdc7ae97ab18bb7b7f5e5241e6a49f463e0d822ed92" +
+                "2328e3877e84809e3130d89abf8b1252");
+
+        state = new AriaCtrDrbg.State(16, 1L << 20, counting(0x20, 32), counting(0x80, 32));
+        state.reseed(counting(0x40, 32), counting(0xa0, 32));
+        checkGenerate("CTR_DRBG ARIA-128 personalization and reseed", state, 64, 64,
+                "48474391950ae1db7fdb27144ee274e432afe91157fafbd34ae077bd2ef55886bd6fba2439e57a8e31eb06e6635fb6c3" +
+                "0bf05742dc77b83941ea40b556f63c98");
+
+        state = new AriaCtrDrbg.State(24, 1L << 20, counting(0x60, 40), null);
+        checkGenerate("CTR_DRBG ARIA-192 partial block", state, 0, 37,
+                "a00e790dc10708389da3684947bc39f432588ed0f07a81124bd7b5032e08d2377a345f3650");
+        state.reseed(counting(0xc0, 40), counting(0x10, 5));
+        checkGenerate("CTR_DRBG ARIA-192 reseed with short input", state, 0, 16, "7bc182a260b93922e03161cb7c7529ef");
+
+        boolean rejected = false;
+        try
+        {
+            state.reseed(counting(0xc0, 40), counting(0x10, 41));
+        }
+        catch (IllegalArgumentException e)
+        {
+            rejected = true;
+        }
+        if (!rejected)
+            sFailures++;
+        System.out.println((rejected ? "PASS " : "FAIL ") + "CTR_DRBG additional input longer than seedlen rejected");
+    }
+
+    /**
+     * Generate discarded bytes first if asked to, then check the next output.
+     */
+    private static void checkGenerate(String name, AriaCtrDrbg.State state, int discard, int length, String expected)
+    {
+        if (discard > 0)
+            state.generate(new byte[discard], 0, discard);
+        byte[] out = new byte[length];
+        state.generate(out, 0, length);
+        check(name, out, hex(expected));
+    }
+
+    private static byte[] counting(int start, int length)
+    {
+        byte[] result = new byte[length];
+        for (int i = 0; i < length; i++)
+            result[i] = (byte) (start + i);
+        return result;
+    }
+
+   /*
+    * Re-encryption has no vectors of its own, it is checked against the formats it converts between: round trips,
+    * truncation, lengths the target format can't take, and resuming an interrupted file run.
+    */
+    private static void testReencryptor() throws IOException
+    {
+        final int chunkSize = 4096;
+        AriaCipher ecbCipher = new AriaCipher(hex("000102030405060708090a0b0c0d0e0f"));
+        AriaReencryptor.Format ecb = AriaReencryptor.Format.ecb(ecbCipher);
+        AriaReencryptor.Format gcmSiv = AriaReencryptor.Format.gcmSiv(
+                new AriaGcmSiv(hex("000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f")),
+                hex("01020304"));
+        final AriaReencryptor toGcmSiv = new AriaReencryptor(ecb, gcmSiv, chunkSize);
+        final AriaReencryptor toEcb = new AriaReencryptor(gcmSiv, ecb, chunkSize);
+        ForkJoinPool pool = new ForkJoinPool(2);
+        Random random = new Random(8452);
+        try
+        {
+            for (int length : new int[]{0, 16, chunkSize, chunkSize + 32, 3 * chunkSize + 48})
+            {
+                byte[] plainText = new byte[length];
+                random.nextBytes(plainText);
+                byte[] source = ecbCipher.encrypt(plainText);
+                byte[] converted = toGcmSiv.reencrypt(source, pool);
+                check("Reencrypt ECB -> GCM-SIV -> ECB, " + String.valueOf(length) + " bytes",
+                        toEcb.reencrypt(converted, null), source);
+                if (length >= chunkSize)
+                {
+                    //Drop the last chunk, what is left ends on a chunk boundary
+                    int lastChunk = (length - 1) / chunkSize;
+                    final byte[] truncated = Arrays.copyOf(converted, lastChunk * (chunkSize + AriaGcmSiv.TAG_SIZE));
+                    checkRejected("Reencrypt GCM-SIV cut to " + String.valueOf(truncated.length) + " bytes",
+                            new Runnable()
+                            {
+                                @Override
+                                public void run()
+                                {
+                                    toEcb.reencrypt(truncated, null);
+                                }
+                            });
+                }
+            }
+
+            Path directory = Files.createTempDirectory("aria-reencrypt");
+            Path source = directory.resolve("source");
+            Path target = directory.resolve("target");
+            Path resumed = directory.resolve("resumed");
+            try
+            {
+                //Last GCM-SIV chunk holds 4 bytes of plaintext, which ECB can't take
+                byte[] unaligned = toGcmSiv.reencrypt(new byte[chunkSize], null);
+                AriaGcmSiv aead = new AriaGcmSiv(hex("000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f"));
+                unaligned = Arrays.copyOf(unaligned, chunkSize + 2 * AriaGcmSiv.TAG_SIZE + 4);
+                aead.encrypt(hex("010203040000000000000001"), new byte[]{1}, new byte[4], 0, 4, unaligned,
+                        chunkSize + AriaGcmSiv.TAG_SIZE);
+                Files.write(source, unaligned);
+                boolean rejected = false;
+                try
+                {
+                    toEcb.reencrypt(source, target, 0, null, pool);
+                }
+                catch (IllegalArgumentException e)
+                {
+                    rejected = !Files.exists(target);
+                }
+                if (!rejected)
+                    sFailures++;
+                System.out.println((rejected ? "PASS " : "FAIL ") + "Reencrypt unaligned ECB target rejected before " +
+                        "output");
+
+                byte[] plainText = new byte[5 * 1024 * 1024 + 48];
+                random.nextBytes(plainText);
+                Files.write(source, ecbCipher.encrypt(plainText));
+                toGcmSiv.reencrypt(source, target, 0, null, pool);
+                final long[] completed = new long[1];
+                try
+                {
+                    //Stop after the first window, as if the process died
+                    toGcmSiv.reencrypt(source, resumed, 0, new AriaReencryptor.Checkpoint()
+                    {
+                        @Override
+                        public void completed(long chunks) throws IOException
+                        {
+                            completed[0] = chunks;
+                            throw new IOException("Interrupted");
+                        }
+                    }, pool);
+                }
+                catch (IOException e)
+                {
+                    //Expected
+                }
+                toGcmSiv.reencrypt(source, resumed, completed[0], null, pool);
+                check("Reencrypt file resumed from chunk " + String.valueOf(completed[0]),
+                        Files.readAllBytes(resumed), Files.readAllBytes(target));
+            }
+            finally
+            {
+                Files.deleteIfExists(source);
+                Files.deleteIfExists(target);
+                Files.deleteIfExists(resumed);
+                Files.deleteIfExists(directory);
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    private static void checkRejected(String name, Runnable action)
+    {
+        boolean rejected = false;
+        try
+        {
+            action.run();
+        }
+        catch (IllegalArgumentException e)
+        {
+            rejected = true;
+        }
+        if (!rejected)
+            sFailures++;
+        System.out.println((rejected ? "PASS " : "FAIL ") + name + " rejected");
+    }
+
+    static void check(String name, byte[] actual, byte[] expected)
+    {
+        boolean passed = Arrays.equals(actual, expected);
+        if (!passed)
+            sFailures++;
+        System.out.println((passed ? "PASS " : "FAIL ") + name);
+    }
+
+    static byte[] hex(String s)
+    {
+        byte[] result = new byte[s.length() / 2];
+        for (int i = 0; i < result.length; i++)
+            result[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        return result;
+    }
+}